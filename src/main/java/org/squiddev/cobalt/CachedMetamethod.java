@@ -25,13 +25,33 @@
 package org.squiddev.cobalt;
 
 /**
- * A metamethod whose absence will be cached.
+ * A metamethod whose lookup will be cached.
+ *
+ * Each metatable keeps the result of looking up each of these metamethods (including their absence), which is cleared
+ * whenever a non-integer key is set on it.
+ *
+ * @see LuaTable#rawget(CachedMetamethod)
  */
 public enum CachedMetamethod {
 	INDEX(Constants.INDEX),
 	NEWINDEX(Constants.NEWINDEX),
 	LEN(Constants.LEN),
-	EQ(Constants.EQ);
+	EQ(Constants.EQ),
+	CALL(Constants.CALL),
+	MODE(Constants.MODE),
+	METATABLE(Constants.METATABLE),
+	ADD(Constants.ADD),
+	SUB(Constants.SUB),
+	DIV(Constants.DIV),
+	MUL(Constants.MUL),
+	POW(Constants.POW),
+	MOD(Constants.MOD),
+	UNM(Constants.UNM),
+	LT(Constants.LT),
+	LE(Constants.LE),
+	TOSTRING(Constants.TOSTRING),
+	CONCAT(Constants.CONCAT),
+	PAIRS(Constants.PAIRS);
 
 	private final LuaString key;
 
@@ -169,6 +169,34 @@ public abstract class LuaBaseString extends LuaValue {
 
 	public abstract int length();
 
+	/**
+	 * Get the byte at a given index, as an unsigned integer.
+	 *
+	 * @param index The index, between 0 and {@link #length()}.
+	 * @return The byte at this index.
+	 */
+	public abstract int luaByte(int index);
+
+	/**
+	 * Get a portion of this string.
+	 *
+	 * @param beginIndex The start of the substring, inclusive.
+	 * @param endIndex   The end of the substring, exclusive.
+	 * @return The substring.
+	 */
+	public abstract LuaBaseString substring(int beginIndex, int endIndex);
+
+	/**
+	 * Copy the bytes of the string into the given byte array.
+	 *
+	 * @param strOffset   offset from which to copy
+	 * @param bytes       destination byte array
+	 * @param arrayOffset offset in destination
+	 * @param len         number of bytes to copy
+	 * @return The next byte free
+	 */
+	public abstract int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len);
+
 	/**
 	 * Convert to a number in a base, or return Double.NaN if not a number.
 	 *
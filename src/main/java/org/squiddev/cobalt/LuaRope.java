@@ -1,95 +1,242 @@
 package org.squiddev.cobalt;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A lazily concatenated string, stored as a balanced binary tree of strings.
+ *
+ * Ropes can be measured, indexed, sliced and copied without being flattened. They are only converted into a single
+ * {@link LuaString} when the whole string is needed, such as when hashing, comparing or pattern matching.
+ */
 public final class LuaRope extends LuaBaseString {
-	private static final int SMALL_STRING = 32;
+	private static final int SMALL_STRING = 128;
+
+	/**
+	 * The largest buffer used for the end of a rope which is being appended to.
+	 */
+	private static final int TAIL_SIZE = 1024;
 
 	private LuaString string;
-	private LuaBaseString[] contents;
+	private LuaBaseString left;
+	private LuaBaseString right;
 	private final int length;
+	private final int depth;
+
+	/**
+	 * Whether this rope's right child is the buffer of a rope being appended to (see {@link #append(LuaBaseString,
+	 * LuaBaseString)}). Such ropes are not balanced, and so are only ever used as the root of a rope.
+	 */
+	private boolean tail;
 
-	private LuaRope parent;
-	private int index;
+	/**
+	 * Whether bytes may be written to this rope's buffer after its right child. Only the latest rope built on a buffer
+	 * may do so, as earlier ones only read the bytes before their own length. Ropes are not shared between Lua
+	 * states, so this does not need to be synchronised.
+	 */
+	private boolean appendable;
 
-	private LuaRope(LuaBaseString[] contents, int length) {
-		this.contents = contents;
-		this.length = length;
+	private LuaRope(LuaBaseString left, LuaBaseString right) {
+		this.left = left;
+		this.right = right;
+		this.length = left.length() + right.length();
+		this.depth = 1 + Math.max(depth(left), depth(right));
 	}
 
 	public static LuaBaseString valueOf(LuaValue[] contents, int start, int length, int strLength) {
 		if (length == 0 || strLength == 0) return Constants.EMPTYSTRING;
-		if (length == 1) return (LuaBaseString) contents[0];
+		if (length == 1) return (LuaBaseString) contents[start];
+
+		if (strLength <= SMALL_STRING) return flatten(contents, start, start + length, strLength);
+
+		// Group consecutive short strings together, and then join the groups.
+		LuaBaseString result = null;
+		int end = start + length;
+		while (start < end) {
+			LuaBaseString piece = (LuaBaseString) contents[start];
+			int pieceLength = piece.length(), next = start + 1;
+			while (next < end && pieceLength + ((LuaBaseString) contents[next]).length() <= SMALL_STRING) {
+				pieceLength += ((LuaBaseString) contents[next++]).length();
+			}
+			if (next > start + 1) piece = flatten(contents, start, next, pieceLength);
 
-		if (strLength > SMALL_STRING) {
-			LuaBaseString[] slice = new LuaBaseString[length];
-			System.arraycopy(contents, start, slice, 0, length);
-			return new LuaRope(slice, strLength);
+			result = result == null ? piece : concat(result, piece);
+			start = next;
 		}
 
-		byte[] out = new byte[strLength];
+		return result;
+	}
+
+	private static LuaString flatten(LuaValue[] contents, int start, int end, int length) {
+		byte[] out = new byte[length];
 		int position = 0;
-		for (int i = 0; i < length; i++) {
-			LuaString string = (LuaString) contents[start + i];
-			System.arraycopy(string.bytes, string.offset, out, position, string.length);
-			position += string.length;
+		for (int i = start; i < end; i++) {
+			LuaBaseString string = (LuaBaseString) contents[i];
+			position = string.copyTo(0, out, position, string.length());
 		}
 
 		return LuaString.valueOf(out);
 	}
 
-	@Override
-	public LuaString strvalue() {
-		return string != null ? string : actualise(this);
+	/**
+	 * Concatenate two strings, producing a rope if the result is sufficiently long.
+	 *
+	 * @param left  The first string.
+	 * @param right The second string.
+	 * @return The concatenated string.
+	 */
+	public static LuaBaseString concat(LuaBaseString left, LuaBaseString right) {
+		if (left.length() == 0) return right;
+		if (right.length() == 0) return left;
+		if (right.length() <= SMALL_STRING && left.length() + right.length() > SMALL_STRING) return append(left, right);
+		return join(settle(left), settle(right));
 	}
 
 	/**
-	 * Convert a rope into a string, updating it in place.
+	 * Append a short string to a rope.
 	 *
-	 * This is effectively a recursive algorithm, but implemented as a basic loop. The ropes themselves act as the
-	 * stack, holding onto the current iteration state of their parent. Unlike strings, ropes are not shared across Lua
-	 * instances, and so we don't need to worry about race conditions.
+	 * Repeatedly appending to a balanced rope would copy the path to its last leaf each time. Instead, the end of the
+	 * rope is kept in a growable buffer, which later appends write into directly. Once the buffer is full it is joined
+	 * onto the rest of the rope, and a new one started. This makes building a string with repeated {@code ..}
+	 * amortised constant time per append.
 	 *
-	 * @param current The rope to convert to a string.
-	 * @return The actualised string.
+	 * @param left  The rope to append to.
+	 * @param right The short string to append.
+	 * @return The concatenated string.
 	 */
-	private static LuaString actualise(LuaRope current) {
-		byte[] out = new byte[current.length];
-		int position = 0;
-
-		top:
-		while (true) {
-			LuaBaseString[] contents = current.contents;
-			int index = current.index;
-
-			for (; index < contents.length; index++) {
-				LuaBaseString str = contents[index];
-				LuaString string;
-				if (str instanceof LuaRope) {
-					LuaRope rope = (LuaRope) str;
-					if (rope.contents != null) {
-						current.index = index + 1;
-						rope.parent = current;
-						current = rope;
-						continue top;
+	private static LuaRope append(LuaBaseString left, LuaBaseString right) {
+		int length = right.length();
+		if (left instanceof LuaRope) {
+			LuaRope rope = (LuaRope) left;
+			if (rope.appendable && rope.string == null) {
+				LuaString tail = (LuaString) rope.right;
+				int tailLength = tail.length + length;
+				if (tailLength <= TAIL_SIZE) {
+					byte[] bytes = tail.bytes;
+					if (tailLength > bytes.length) {
+						bytes = Arrays.copyOf(bytes, Math.min(TAIL_SIZE, Math.max(tailLength, bytes.length * 2)));
 					}
 
-					string = rope.string;
-				} else {
-					string = (LuaString) str;
+					right.copyTo(0, bytes, tail.length, length);
+					rope.appendable = false;
+					return tail(rope.left, LuaString.wrap(bytes, 0, tailLength));
 				}
+			}
+
+			left = settle(left);
+		}
+
+		byte[] bytes = new byte[Math.max(length * 2, SMALL_STRING / 2)];
+		right.copyTo(0, bytes, 0, length);
+		return tail(left, LuaString.wrap(bytes, 0, length));
+	}
+
+	private static LuaRope tail(LuaBaseString left, LuaString tail) {
+		LuaRope rope = new LuaRope(left, tail);
+		rope.tail = rope.appendable = true;
+		return rope;
+	}
+
+	/**
+	 * Convert a rope whose end is being appended to into a balanced one, so that it may be joined with others.
+	 */
+	private static LuaBaseString settle(LuaBaseString string) {
+		if (!(string instanceof LuaRope)) return string;
+
+		LuaRope rope = (LuaRope) string;
+		return rope.tail && rope.string == null ? join(rope.left, rope.right) : rope;
+	}
+
+	private static int depth(LuaBaseString string) {
+		if (!(string instanceof LuaRope)) return 0;
+		LuaRope rope = (LuaRope) string;
+		return rope.string == null ? rope.depth : 0;
+	}
+
+	private static boolean isShortLeaf(LuaBaseString string) {
+		return depth(string) == 0 && string.length() <= SMALL_STRING;
+	}
+
+	private static LuaString flatten(LuaBaseString left, LuaBaseString right) {
+		byte[] out = new byte[left.length() + right.length()];
+		right.copyTo(0, out, left.copyTo(0, out, 0, left.length()), right.length());
+		return LuaString.valueOf(out);
+	}
+
+	/**
+	 * Join two ropes, keeping the result balanced.
+	 *
+	 * This is the join operation on AVL trees: we descend the spine of the deeper rope until we find a node of similar
+	 * depth to the other rope, and then rebalance on the way back up. Only the nodes along that spine are copied.
+	 *
+	 * @param left  The left rope.
+	 * @param right The right rope.
+	 * @return The joined rope.
+	 */
+	private static LuaBaseString join(LuaBaseString left, LuaBaseString right) {
+		if (left.length() + right.length() <= SMALL_STRING) return flatten(left, right);
+
+		int leftDepth = depth(left), rightDepth = depth(right);
+		if (leftDepth > rightDepth + 1) {
+			LuaRope rope = (LuaRope) left;
+			return balance(rope.left, join(rope.right, right));
+		} else if (rightDepth > leftDepth + 1) {
+			LuaRope rope = (LuaRope) right;
+			return balance(join(left, rope.left), rope.right);
+		}
 
-				System.arraycopy(string.bytes, string.offset, out, position, string.length);
-				position += string.length;
+		// Merge short strings appended to a rope, to avoid building up many tiny leaves.
+		if (leftDepth > 0 && isShortLeaf(right)) {
+			LuaRope rope = (LuaRope) left;
+			if (isShortLeaf(rope.right) && rope.right.length() + right.length() <= SMALL_STRING) {
+				return balance(rope.left, flatten(rope.right, right));
+			}
+		}
+
+		return new LuaRope(left, right);
+	}
+
+	/**
+	 * Create a node from two ropes whose depths differ by at most two, rotating it if needed.
+	 */
+	private static LuaRope balance(LuaBaseString left, LuaBaseString right) {
+		int leftDepth = depth(left), rightDepth = depth(right);
+		if (leftDepth > rightDepth + 1) {
+			LuaRope rope = (LuaRope) left;
+			if (depth(rope.left) >= depth(rope.right)) {
+				return new LuaRope(rope.left, new LuaRope(rope.right, right));
+			}
+
+			LuaRope inner = (LuaRope) rope.right;
+			return new LuaRope(new LuaRope(rope.left, inner.left), new LuaRope(inner.right, right));
+		} else if (rightDepth > leftDepth + 1) {
+			LuaRope rope = (LuaRope) right;
+			if (depth(rope.right) >= depth(rope.left)) {
+				return new LuaRope(new LuaRope(left, rope.left), rope.right);
 			}
 
-			current.index = 0;
-			LuaRope parent = current.parent;
-			if (parent == null) break;
-			current.parent = null;
-			current = parent;
+			LuaRope inner = (LuaRope) rope.left;
+			return new LuaRope(new LuaRope(left, inner.left), new LuaRope(inner.right, rope.right));
 		}
 
-		current.contents = null;
-		return current.string = LuaString.valueOf(out);
+		return new LuaRope(left, right);
+	}
+
+	@Override
+	public LuaString strvalue() {
+		LuaString string = this.string;
+		if (string != null) return string;
+
+		byte[] out = new byte[length];
+		copyTo(0, out, 0, length);
+
+		this.string = string = LuaString.valueOf(out);
+
+		// Drop the children, so the rope no longer holds on to both copies.
+		left = right = null;
+		return string;
 	}
 
 	@Override
@@ -97,9 +244,94 @@ public final class LuaRope extends LuaBaseString {
 		return length;
 	}
 
+	@Override
+	public int luaByte(int index) {
+		LuaBaseString current = this;
+		while (current instanceof LuaRope) {
+			LuaRope rope = (LuaRope) current;
+			if (rope.string != null) return rope.string.luaByte(index);
+
+			int leftLength = rope.left.length();
+			if (index < leftLength) {
+				current = rope.left;
+			} else {
+				current = rope.right;
+				index -= leftLength;
+			}
+		}
+
+		return ((LuaString) current).luaByte(index);
+	}
+
+	@Override
+	public LuaBaseString substring(int beginIndex, int endIndex) {
+		LuaString string = this.string;
+		if (string != null) return string.substring(beginIndex, endIndex);
+		if (beginIndex == 0 && endIndex == length) return this;
+
+		int leftLength = left.length();
+		if (endIndex <= leftLength) return left.substring(beginIndex, endIndex);
+		if (beginIndex >= leftLength) return right.substring(beginIndex - leftLength, endIndex - leftLength);
+
+		if (endIndex - beginIndex <= SMALL_STRING) {
+			byte[] out = new byte[endIndex - beginIndex];
+			copyTo(beginIndex, out, 0, out.length);
+			return LuaString.valueOf(out);
+		}
+
+		return join(left.substring(beginIndex, leftLength), right.substring(0, endIndex - leftLength));
+	}
+
+	@Override
+	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
+		LuaString string = this.string;
+		if (string != null) return string.copyTo(strOffset, bytes, arrayOffset, len);
+
+		int leftLength = left.length();
+		if (strOffset < leftLength) {
+			int leftCount = Math.min(len, leftLength - strOffset);
+			arrayOffset = left.copyTo(strOffset, bytes, arrayOffset, leftCount);
+			strOffset += leftCount;
+			len -= leftCount;
+		}
+
+		return len > 0 ? right.copyTo(strOffset - leftLength, bytes, arrayOffset, len) : arrayOffset;
+	}
+
+	/**
+	 * Get the strings which make up this rope, in order. This allows writing a rope without flattening it.
+	 *
+	 * @return An iterator over this rope's strings.
+	 */
+	public Iterator<LuaString> pieces() {
+		ArrayDeque<LuaBaseString> stack = new ArrayDeque<>();
+		stack.push(this);
+		return new Iterator<LuaString>() {
+			@Override
+			public boolean hasNext() {
+				return !stack.isEmpty();
+			}
+
+			@Override
+			public LuaString next() {
+				if (stack.isEmpty()) throw new NoSuchElementException();
+
+				LuaBaseString current = stack.pop();
+				while (current instanceof LuaRope) {
+					LuaRope rope = (LuaRope) current;
+					if (rope.string != null) return rope.string;
+
+					stack.push(rope.right);
+					current = rope.left;
+				}
+				return (LuaString) current;
+			}
+		};
+	}
+
 	@Override
 	public double scanNumber(int base) {
-		return string.scanNumber(base);
+		return strvalue().scanNumber(base);
 	}
 
 	@Override
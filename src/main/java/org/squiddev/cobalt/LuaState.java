@@ -27,15 +27,20 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.compiler.LoadState;
 import org.squiddev.cobalt.compiler.LuaC;
 import org.squiddev.cobalt.debug.DebugHandler;
+import org.squiddev.cobalt.lib.FormatProgram;
+import org.squiddev.cobalt.lib.LuaPattern;
 import org.squiddev.cobalt.lib.platform.FileResourceManipulator;
 import org.squiddev.cobalt.lib.platform.ResourceManipulator;
 
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -87,6 +92,16 @@ public final class LuaState {
 	 */
 	public final LuaTable loadedPackages = new LuaTable();
 
+	/**
+	 * Patterns compiled by the string library, evicting the least recently used once full.
+	 */
+	public final Map<LuaString, LuaPattern> patternCache = createCache(LuaPattern.CACHE_SIZE);
+
+	/**
+	 * Format strings compiled by {@code string.format}, evicting the least recently used once full.
+	 */
+	public final Map<LuaString, FormatProgram> formatCache = createCache(FormatProgram.CACHE_SIZE);
+
 	/**
 	 * The active resource manipulator
 	 */
@@ -97,6 +112,34 @@ public final class LuaState {
 	 */
 	public final LoadState.LuaCompiler compiler;
 
+	/**
+	 * Whether closures without upvalues may be shared.
+	 *
+	 * @see Builder#shareClosures(boolean)
+	 */
+	public final boolean shareClosures;
+
+	/**
+	 * Whether tables created by the same constructor should share their hash layout.
+	 *
+	 * @see Builder#tableShapes(boolean)
+	 */
+	public final boolean tableShapes;
+
+	/**
+	 * Whether tables created by table constructors should store numeric array parts unboxed.
+	 *
+	 * @see Builder#numberArrays(boolean)
+	 */
+	public final boolean numberArrays;
+
+	/**
+	 * Whether libraries should use frozen tables shared with every other state, rather than creating their own.
+	 *
+	 * @see Builder#sharedLibraries(boolean)
+	 */
+	public final boolean sharedLibraries;
+
 	/**
 	 * The handler for the debugger. Override this for custom debug actions.
 	 */
@@ -134,6 +177,47 @@ public final class LuaState {
 	 */
 	boolean abandoned;
 
+	/**
+	 * How often the clock is checked when using a {@link Builder#timeBudget(long, TimeUnit) time budget}.
+	 */
+	private static final int BUDGET_CLOCK_INTERVAL = 1 << 10;
+
+	/**
+	 * The maximum number of steps and nanoseconds to execute for, or {@code 0} if unbounded.
+	 *
+	 * @see Builder#stepBudget(long)
+	 * @see Builder#timeBudget(long, TimeUnit)
+	 */
+	private final long stepBudget, timeBudget;
+
+	/**
+	 * Whether to suspend the current thread when the budget is exhausted, rather than erroring.
+	 */
+	private final boolean suspendOnBudget;
+
+	/**
+	 * The number of steps remaining in the current budget, and the nanoseconds remaining when no code is running.
+	 */
+	private long budgetSteps, budgetTime;
+
+	/**
+	 * The {@link System#nanoTime()} at which the current budget expires. This is only valid while code is running.
+	 *
+	 * @see #startBudget()
+	 */
+	private long budgetDeadline;
+
+	/**
+	 * The number of nested {@link LuaThread} runs currently executing on this state.
+	 */
+	private int budgetRunning;
+
+	/**
+	 * The number of steps before we next need to check the budget, and the number of steps which were available at the
+	 * last check.
+	 */
+	private int budgetCountdown, budgetChunk;
+
 	public LuaState() {
 		this(new LuaState.Builder());
 	}
@@ -149,10 +233,87 @@ public final class LuaState {
 		this.threadMetatable = builder.threadMetatable;
 		this.resourceManipulator = builder.resourceManipulator;
 		this.compiler = builder.compiler;
+		this.shareClosures = builder.shareClosures;
+		this.tableShapes = builder.tableShapes;
+		this.numberArrays = builder.numberArrays;
+		this.sharedLibraries = builder.sharedLibraries;
 		this.random = builder.random;
 		this.debug = builder.debug;
 		this.timezone = builder.timezone;
 		this.threader = new YieldThreader(builder.coroutineExecutor);
+		this.stepBudget = builder.stepBudget;
+		this.timeBudget = builder.timeBudget;
+		this.suspendOnBudget = builder.suspendOnBudget;
+		resetBudget();
+	}
+
+	/**
+	 * Reset the execution budget of this state, allowing code to run for another {@link Builder#stepBudget(long)} steps
+	 * or {@link Builder#timeBudget(long, TimeUnit)}.
+	 *
+	 * When a budget is exhausted, it will continue to error until it is reset. Suspending threads reset the budget
+	 * automatically. The time budget only counts time spent running code, not time spent waiting to be resumed.
+	 */
+	public void resetBudget() {
+		budgetSteps = stepBudget > 0 ? stepBudget : Long.MAX_VALUE;
+		budgetTime = timeBudget;
+		if (budgetRunning > 0) budgetDeadline = System.nanoTime() + timeBudget;
+		budgetCountdown = budgetChunk = nextBudgetChunk();
+	}
+
+	/**
+	 * Start the clock for the time budget, as code is about to start or resume running. Time spent outside of
+	 * {@link LuaThread#run(LuaThread, Varargs)} and {@link LuaThread#runMain} is not counted.
+	 *
+	 * @see #pauseBudget()
+	 */
+	void startBudget() {
+		if (budgetRunning++ == 0 && timeBudget > 0) budgetDeadline = System.nanoTime() + budgetTime;
+	}
+
+	/**
+	 * Stop the clock for the time budget, remembering how much time is remaining.
+	 *
+	 * @see #startBudget()
+	 */
+	void pauseBudget() {
+		if (--budgetRunning == 0 && timeBudget > 0) budgetTime = budgetDeadline - System.nanoTime();
+	}
+
+	/**
+	 * Consume one step of this state's execution budget. This is called by the interpreter on every call and backwards
+	 * jump, and so is cheap unless a budget is exhausted.
+	 *
+	 * @return Whether the budget was exhausted and the current thread should be suspended.
+	 * @throws LuaError If the budget was exhausted and this state does not suspend.
+	 */
+	public boolean consumeBudget() throws LuaError {
+		return --budgetCountdown < 0 && checkBudget();
+	}
+
+	private boolean checkBudget() throws LuaError {
+		budgetSteps -= budgetChunk;
+		if (budgetSteps > 0 && (timeBudget <= 0 || System.nanoTime() - budgetDeadline < 0)) {
+			// Count this step against the next chunk.
+			budgetChunk = nextBudgetChunk();
+			budgetCountdown = budgetChunk - 1;
+			return false;
+		}
+
+		if (suspendOnBudget) {
+			resetBudget();
+			return true;
+		}
+
+		// Keep the budget exhausted, so any subsequent step will error again.
+		budgetSteps = 0;
+		budgetCountdown = budgetChunk = 0;
+		throw new LuaError("execution budget exhausted");
+	}
+
+	private int nextBudgetChunk() {
+		int max = timeBudget > 0 ? BUDGET_CLOCK_INTERVAL : Integer.MAX_VALUE;
+		return budgetSteps < max ? (int) budgetSteps : max;
 	}
 
 	/**
@@ -205,6 +366,17 @@ public final class LuaState {
 		return new LuaState.Builder();
 	}
 
+	private static <V> Map<LuaString, V> createCache(int maxSize) {
+		return new LinkedHashMap<LuaString, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 6120738441372346624L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<LuaString, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
 	/**
 	 * A mutable builder for {@link LuaState}s.
 	 */
@@ -226,10 +398,17 @@ public final class LuaState {
 		private LuaTable threadMetatable;
 		private ResourceManipulator resourceManipulator = new FileResourceManipulator();
 		private LoadState.LuaCompiler compiler = LuaC.INSTANCE;
+		private boolean shareClosures;
+		private boolean tableShapes;
+		private boolean numberArrays;
+		private boolean sharedLibraries;
 		private Random random = new Random();
 		private DebugHandler debug = DebugHandler.INSTANCE;
 		private TimeZone timezone = TimeZone.getDefault();
 		private Executor coroutineExecutor = defaultCoroutineExecutor;
+		private long stepBudget;
+		private long timeBudget;
+		private boolean suspendOnBudget;
 
 		/**
 		 * Build a Lua state from this builder
@@ -357,6 +536,70 @@ public final class LuaState {
 			return this;
 		}
 
+		/**
+		 * Set whether functions which capture no upvalues may be shared. When set, evaluating the same
+		 * {@code function() ... end} expression repeatedly within the same environment will return the same closure,
+		 * rather than allocating a new one each time.
+		 *
+		 * Note this is visible to Lua code: such closures will compare equal, and calling {@code setfenv} on one will
+		 * affect the others.
+		 *
+		 * @param share Whether to share closures
+		 * @return This builder
+		 */
+		public Builder shareClosures(boolean share) {
+			this.shareClosures = share;
+			return this;
+		}
+
+		/**
+		 * Set whether tables created by the same table constructor should share their hash layout. When set, tables
+		 * created by a {@code {x = ..., y = ...}} expression will have their string keys preallocated in the same
+		 * slots as the first table created by it, avoiding rehashing and allowing field accesses to share inline
+		 * caches.
+		 *
+		 * This does not change the behaviour of tables, though {@code next} may return keys in a different order.
+		 * Shapes are recorded on the function's prototype, and are only used by the first state to run it.
+		 *
+		 * @param shapes Whether to share table shapes
+		 * @return This builder
+		 */
+		public Builder tableShapes(boolean shapes) {
+			this.tableShapes = shapes;
+			return this;
+		}
+
+		/**
+		 * Set whether tables created by table constructors should store their array part as a {@code double[]} while
+		 * it only contains numbers. This reduces the memory used by large arrays of numbers, at the cost of allocating
+		 * when reading non-integer values.
+		 *
+		 * @param numberArrays Whether to use unboxed number arrays
+		 * @return This builder
+		 * @see LuaTable#useNumberArray()
+		 */
+		public Builder numberArrays(boolean numberArrays) {
+			this.numberArrays = numberArrays;
+			return this;
+		}
+
+		/**
+		 * Set whether the {@code string}, {@code table}, {@code math} and {@code coroutine} libraries should be
+		 * created once and shared between all states, rather than being created for each one. This saves the
+		 * allocation of every library table and function when creating many states.
+		 *
+		 * The shared tables are frozen, so scripts may not add or replace library functions. The functions themselves
+		 * are also shared, so their environments cannot be changed with {@code debug.setfenv}.
+		 *
+		 * @param sharedLibraries Whether to use shared library tables
+		 * @return This builder
+		 * @see LuaTable#freeze()
+		 */
+		public Builder sharedLibraries(boolean sharedLibraries) {
+			this.sharedLibraries = sharedLibraries;
+			return this;
+		}
+
 		/**
 		 * Set the initial random state for the Lua state. This will be used by {@code math.random}, but may
 		 * be changed by {@code math.radomseed}
@@ -406,5 +649,48 @@ public final class LuaState {
 			this.coroutineExecutor = coroutineExecutor;
 			return this;
 		}
+
+		/**
+		 * Limit the number of steps Lua code may run for before being stopped. A step is either a function call or a
+		 * backwards jump (such as a loop iteration).
+		 *
+		 * @param steps The maximum number of steps, or {@code 0} for no limit.
+		 * @return This builder
+		 * @see LuaState#resetBudget()
+		 */
+		public Builder stepBudget(long steps) {
+			if (steps < 0) throw new IllegalArgumentException("steps cannot be negative");
+			this.stepBudget = steps;
+			return this;
+		}
+
+		/**
+		 * Limit how long Lua code may run for before being stopped. Like {@link #stepBudget(long)}, this is only
+		 * checked on calls and backwards jumps.
+		 *
+		 * @param duration The maximum duration, or {@code 0} for no limit.
+		 * @param unit     The unit of {@code duration}.
+		 * @return This builder
+		 * @see LuaState#resetBudget()
+		 */
+		public Builder timeBudget(long duration, TimeUnit unit) {
+			if (duration < 0) throw new IllegalArgumentException("duration cannot be negative");
+			if (unit == null) throw new NullPointerException("unit cannot be null");
+			this.timeBudget = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * Set whether the current thread should be suspended when the execution budget is exhausted, rather than
+		 * throwing an error. The thread is given a fresh budget when suspended.
+		 *
+		 * @param suspend Whether to suspend the current thread.
+		 * @return This builder
+		 * @see LuaThread#suspend(LuaState)
+		 */
+		public Builder suspendOnBudget(boolean suspend) {
+			this.suspendOnBudget = suspend;
+			return this;
+		}
 	}
 }
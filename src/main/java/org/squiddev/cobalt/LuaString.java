@@ -30,6 +30,11 @@ import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings.
@@ -54,15 +59,32 @@ public final class LuaString extends LuaBaseString {
 	/**
 	 * Size of cache of recent short strings. This is the maximum number of LuaStrings that
 	 * will be retained in the cache of recent short strings.
+	 *
+	 * This may be set with the {@code cobalt.stringCacheSize} system property, and is rounded up to a power of two.
 	 */
-	public static final int RECENT_STRINGS_CACHE_SIZE = 128;
+	public static final int RECENT_STRINGS_CACHE_SIZE = Integer.highestOneBit(Math.max(2, Integer.getInteger("cobalt.stringCacheSize", 4096)) * 2 - 1);
 
 	/**
 	 * Maximum length of a string to be considered for recent short strings caching.
 	 * This effectively limits the total memory that can be spent on the recent strings cache,
 	 * because no LuaString whose backing exceeds this length will be put into the cache.
+	 *
+	 * This may be set with the {@code cobalt.stringCacheLength} system property. It is also the limit for
+	 * {@linkplain #intern() interning}.
+	 */
+	public static final int RECENT_STRINGS_MAX_LENGTH = Integer.getInteger("cobalt.stringCacheLength", 32);
+
+	/**
+	 * Whether every short string is {@linkplain #intern() interned} when it is created, rather than going through the
+	 * cache of recent strings. This is set with the {@code cobalt.internStrings} system property.
+	 *
+	 * Interning means equal short strings are always the same instance, but every new short string must be looked up
+	 * in a table of all live short strings. For most programs this costs more than it saves.
 	 */
-	public static final int RECENT_STRINGS_MAX_LENGTH = 32;
+	public static final boolean INTERN_STRINGS = Boolean.getBoolean("cobalt.internStrings");
+
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder cacheMisses = new LongAdder();
 
 	/**
 	 * The bytes for the string
@@ -81,27 +103,199 @@ public final class LuaString extends LuaBaseString {
 
 	private int hashCode;
 
-	private static class Cache {
-		/**
-		 * Simple cache of recently created strings that are short.
-		 * This is simply a list of strings, indexed by their hash codes modulo the cache size
-		 * that have been recently constructed.  If a string is being constructed frequently
-		 * from different contexts, it will generally may show up as a cache hit and resolve
-		 * to the same value.
-		 */
-		public final LuaString[] recentShortStrings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
+	/**
+	 * Whether this string is in the {@link Interner}. Two interned strings are only equal if they are the same
+	 * instance.
+	 */
+	private final boolean interned;
 
-		public LuaString get(LuaString s) {
-			final int index = s.hashCode() & (RECENT_STRINGS_CACHE_SIZE - 1);
-			final LuaString cached = recentShortStrings[index];
-			if (cached != null && s.raweq(cached)) {
-				return cached;
+	/**
+	 * A cache of recently created short strings, shared by all states. This ensures strings which are constructed
+	 * frequently resolve to the same instance, and so can be compared (and used as table keys) without comparing
+	 * their contents.
+	 *
+	 * The cache is two-way set associative: each string may live in one of two slots, with the most recently used
+	 * one being checked first. Slots are read and written without locking: a race may at worst lose an entry or
+	 * create a duplicate instance, which is harmless as strings are always compared by value.
+	 */
+	private static final class Cache {
+		private static final LuaString[] strings = new LuaString[RECENT_STRINGS_CACHE_SIZE];
+
+		static LuaString get(LuaString s) {
+			final LuaString[] strings = Cache.strings;
+			int h = s.hashCode();
+			final int index = (h ^ (h >>> 16)) & (strings.length - 2);
+
+			final LuaString first = strings[index];
+			if (first != null && s.raweq(first)) {
+				cacheHits.increment();
+				return first;
+			}
+
+			final LuaString second = strings[index + 1];
+			if (second != null && s.raweq(second)) {
+				strings[index] = second;
+				strings[index + 1] = first;
+				cacheHits.increment();
+				return second;
 			}
-			recentShortStrings[index] = s;
+
+			cacheMisses.increment();
+			strings[index] = s;
+			strings[index + 1] = first;
 			return s;
 		}
+	}
+
+	/**
+	 * A table of every {@linkplain #intern() interned} string, shared by all states. Equal interned strings always
+	 * resolve to the same instance, and so can be compared (and used as table keys) without comparing their contents.
+	 *
+	 * Strings are held weakly, and removed once they are no longer used. The table is split into segments, each with
+	 * its own lock for adding strings. Finding an existing string does not lock.
+	 */
+	private static final class Interner {
+		private static final int SEGMENTS = 64;
+		private static final Segment[] segments = new Segment[SEGMENTS];
+
+		static {
+			for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment();
+		}
+
+		static LuaString intern(byte[] bytes, int offset, int length) {
+			int hash = hash(bytes, offset, length);
+			int spread = hash ^ (hash >>> 16);
+			return segments[spread & (SEGMENTS - 1)].intern(bytes, offset, length, hash, spread >>> 6);
+		}
+	}
+
+	/**
+	 * A part of the {@link Interner}'s table. Strings are looked up without locking, only taking the lock to add a
+	 * missing string. A lookup racing with a change to the table may miss a string which is present, but will never
+	 * return the wrong one, so we check again under the lock before adding it.
+	 */
+	private static final class Segment {
+		private final ReferenceQueue<LuaString> queue = new ReferenceQueue<>();
+		private volatile Entry[] table = new Entry[16];
+		private int count;
+
+		LuaString intern(byte[] bytes, int offset, int length, int hash, int spread) {
+			LuaString string = find(table, bytes, offset, length, hash, spread);
+			if (string != null) {
+				cacheHits.increment();
+				return string;
+			}
+
+			return add(bytes, offset, length, hash, spread);
+		}
+
+		private synchronized LuaString add(byte[] bytes, int offset, int length, int hash, int spread) {
+			expunge();
+
+			Entry[] table = this.table;
+			LuaString string = find(table, bytes, offset, length, hash, spread);
+			if (string != null) {
+				cacheHits.increment();
+				return string;
+			}
+
+			cacheMisses.increment();
+
+			// Keep small backing arrays, but do not retain a larger one for a short string.
+			if (bytes.length >= RECENT_STRINGS_MAX_LENGTH) {
+				bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+				offset = 0;
+			}
+
+			string = new LuaString(bytes, offset, length, true);
+			string.hashCode = hash;
+			int index = spread & (table.length - 1);
+			table[index] = new Entry(string, queue, hash, spread, table[index]);
+			if (++count > table.length - (table.length >> 2)) resize();
+			return string;
+		}
+
+		private static LuaString find(Entry[] table, byte[] bytes, int offset, int length, int hash, int spread) {
+			for (Entry entry = table[spread & (table.length - 1)]; entry != null; entry = entry.next) {
+				LuaString string;
+				if (entry.hash == hash && (string = entry.get()) != null && string.length == length
+					&& LuaString.equals(string.bytes, string.offset, bytes, offset, length)) {
+					return string;
+				}
+			}
+
+			return null;
+		}
 
-		public static final Cache instance = new Cache();
+		private void resize() {
+			Entry[] oldTable = table;
+			Entry[] newTable = new Entry[oldTable.length * 2];
+			for (Entry entry : oldTable) {
+				while (entry != null) {
+					Entry next = entry.next;
+					int index = entry.spread & (newTable.length - 1);
+					entry.next = newTable[index];
+					newTable[index] = entry;
+					entry = next;
+				}
+			}
+			table = newTable;
+		}
+
+		private void expunge() {
+			Entry[] table = this.table;
+			Reference<? extends LuaString> reference;
+			while ((reference = queue.poll()) != null) {
+				Entry removed = (Entry) reference;
+				int index = removed.spread & (table.length - 1);
+				Entry previous = null;
+				for (Entry entry = table[index]; entry != null; previous = entry, entry = entry.next) {
+					if (entry != removed) continue;
+					if (previous == null) table[index] = entry.next; else previous.next = entry.next;
+					count--;
+					break;
+				}
+			}
+		}
+	}
+
+	private static final class Entry extends WeakReference<LuaString> {
+		final int hash;
+		final int spread;
+
+		/**
+		 * The next entry in this chain. This is volatile so a lookup running alongside a resize always sees the
+		 * chains as they are, and so cannot loop forever.
+		 */
+		volatile Entry next;
+
+		Entry(LuaString string, ReferenceQueue<LuaString> queue, int hash, int spread, Entry next) {
+			super(string, queue);
+			this.hash = hash;
+			this.spread = spread;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Get the number of times a short string was found in the cache of recent strings or the intern table.
+	 *
+	 * @return The number of cache hits.
+	 * @see #getCacheMisses()
+	 */
+	public static long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Get the number of times a short string was not in the cache of recent strings or the intern table, and so was
+	 * added to it.
+	 *
+	 * @return The number of cache misses.
+	 * @see #getCacheHits()
+	 */
+	public static long getCacheMisses() {
+		return cacheMisses.sum();
 	}
 
 	/**
@@ -128,21 +322,39 @@ public final class LuaString extends LuaBaseString {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
-		if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
+		if (INTERN_STRINGS && len < RECENT_STRINGS_MAX_LENGTH) {
+			// Short string. Return the interned instance, only constructing a new one if needed.
+			return Interner.intern(bytes, off, len);
+		} else if (bytes.length < RECENT_STRINGS_MAX_LENGTH) {
 			// Short string.  Reuse the backing and check the cache of recent strings before returning.
-			return Cache.instance.get(new LuaString(bytes, off, len));
+			return Cache.get(new LuaString(bytes, off, len, false));
 		} else if (len >= bytes.length / 2) {
 			// Reuse backing only when more than half the bytes are part of the result.
-			return new LuaString(bytes, off, len);
+			return new LuaString(bytes, off, len, false);
 		} else {
 			// Short result relative to the source.  Copy only the bytes that are actually to be used.
 			final byte[] b = new byte[len];
 			System.arraycopy(bytes, off, b, 0, len);
-			LuaString string = new LuaString(b, 0, len);
-			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.instance.get(string) : string;
+			LuaString string = new LuaString(b, 0, len, false);
+			return len < RECENT_STRINGS_MAX_LENGTH ? Cache.get(string) : string;
 		}
 	}
 
+	/**
+	 * Construct a {@link LuaString} around part of a byte array, without copying, caching or interning it.
+	 *
+	 * This is used by {@link LuaRope} for the buffer at the end of a rope, which may have more bytes written after
+	 * this string's range.
+	 *
+	 * @param bytes  byte buffer
+	 * @param offset offset into the byte buffer
+	 * @param length length of the string
+	 * @return {@link LuaString} wrapping the byte buffer
+	 */
+	static LuaString wrap(byte[] bytes, int offset, int length) {
+		return new LuaString(bytes, offset, length, false);
+	}
+
 	/**
 	 * Construct a {@link LuaString} using the supplied characters as byte values.
 	 *
@@ -182,13 +394,15 @@ public final class LuaString extends LuaBaseString {
 	 *
 	 * @param bytes  byte buffer
 	 * @param offset offset into the byte buffer
-	 * @param length length of the byte buffer
+	 * @param length   length of the byte buffer
+	 * @param interned whether this string is being added to the {@link Interner}
 	 */
-	private LuaString(byte[] bytes, int offset, int length) {
+	private LuaString(byte[] bytes, int offset, int length, boolean interned) {
 		super();
 		this.bytes = bytes;
 		this.offset = offset;
 		this.length = length;
+		this.interned = interned;
 	}
 
 	@Override
@@ -210,6 +424,7 @@ public final class LuaString extends LuaBaseString {
 		return this;
 	}
 
+	@Override
 	public LuaString substring(int beginIndex, int endIndex) {
 		return valueOf(bytes, offset + beginIndex, endIndex - beginIndex);
 	}
@@ -218,17 +433,31 @@ public final class LuaString extends LuaBaseString {
 		return valueOf(bytes, offset + beginIndex, length - 1);
 	}
 
+	/**
+	 * Get the interned instance of this string. Two equal interned strings are always the same instance.
+	 *
+	 * Strings of {@link #RECENT_STRINGS_MAX_LENGTH} bytes or more are never interned, and are returned as-is.
+	 *
+	 * @return The interned string, or this string if it is too long to be interned.
+	 * @see #INTERN_STRINGS
+	 */
+	public LuaString intern() {
+		return interned || length >= RECENT_STRINGS_MAX_LENGTH ? this : Interner.intern(bytes, offset, length);
+	}
+
 	@Override
 	public int hashCode() {
 		int h = hashCode;
 		if (h != 0) return h;
+		return hashCode = hash(bytes, offset, length);
+	}
 
-		h = length;  /* seed */
+	private static int hash(byte[] bytes, int offset, int length) {
+		int h = length;  /* seed */
 		int step = (length >> 5) + 1;  /* if string is too long, don't hash all its chars */
 		for (int l1 = length; l1 >= step; l1 -= step)  /* compute hash */ {
 			h = h ^ ((h << 5) + (h >> 2) + (((int) bytes[offset + l1 - 1]) & 0x0FF));
 		}
-		hashCode = h;
 		return h;
 	}
 
@@ -249,6 +478,10 @@ public final class LuaString extends LuaBaseString {
 		if (this == s) {
 			return true;
 		}
+		if (interned && s.interned) {
+			// Equal interned strings are always the same instance.
+			return false;
+		}
 		if (s.length != length) {
 			return false;
 		}
@@ -291,6 +524,7 @@ public final class LuaString extends LuaBaseString {
 		return length;
 	}
 
+	@Override
 	public int luaByte(int index) {
 		return bytes[offset + index] & 0xFF;
 	}
@@ -324,6 +558,7 @@ public final class LuaString extends LuaBaseString {
 	 * @param len         number of bytes to copy
 	 * @return The next byte free
 	 */
+	@Override
 	public int copyTo(int strOffset, byte[] bytes, int arrayOffset, int len) {
 		System.arraycopy(this.bytes, offset + strOffset, bytes, arrayOffset, len);
 		return arrayOffset + len;
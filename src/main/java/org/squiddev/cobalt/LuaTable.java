@@ -26,9 +26,12 @@ package org.squiddev.cobalt;
 
 import org.squiddev.cobalt.function.LuaFunction;
 import org.squiddev.cobalt.lib.LuaLibrary;
+import org.squiddev.cobalt.lib.UncheckedLuaError;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.squiddev.cobalt.Constants.*;
@@ -55,13 +58,9 @@ import static org.squiddev.cobalt.ValueFactory.*;
  *
  * To iterate over key-value pairs from Java, use
  * <pre> {@code
- * LuaValue k = LuaValue.NIL;
- * while ( true ) {
- *    Varargs n = table.next(k);
- *    if ( (k = n.arg1()).isnil() )
- *       break;
- *    LuaValue v = n.arg(2)
- *    process( k, v )
+ * LuaTable.Cursor cursor = table.cursor();
+ * while (cursor.next()) {
+ *    process(cursor.key(), cursor.value());
  * }}</pre>
  *
  * As with other types, {@link LuaTable} instances should be constructed via one of the table constructor
@@ -81,17 +80,77 @@ import static org.squiddev.cobalt.ValueFactory.*;
  */
 public final class LuaTable extends LuaValue {
 	private static final Object[] EMPTY_ARRAY = new Object[0];
-	private static final Node[] EMPTY_NODES = new Node[0];
+	private static final int[] EMPTY_NEXT = new int[0];
+	private static final double[] EMPTY_NUMBERS = new double[0];
+	private static final int METAMETHOD_COUNT = CachedMetamethod.values().length;
 	private static final LuaString N = valueOf("n");
 
 	private Object[] array = EMPTY_ARRAY;
-	private Node[] nodes = EMPTY_NODES;
+
+	/**
+	 * The array part of the table, used instead of {@link #array} while it only contains numbers. Nil is stored as
+	 * NaN, and so storing a NaN (or any non-number) converts the array part back into an {@link #array}.
+	 *
+	 * @see #useNumberArray()
+	 */
+	private double[] numbers;
+
+	/**
+	 * The hash part of the table. Each node is stored as an entry across these three arrays: its key (or
+	 * {@link Constants#NIL} if free), its value, and the index of the next node in its chain (or {@code -1}).
+	 *
+	 * Keys and values are weak references if {@link #weakKeys} or {@link #weakValues} are set.
+	 */
+	private Object[] keys = EMPTY_ARRAY;
+	private Object[] values = EMPTY_ARRAY;
+	private int[] next = EMPTY_NEXT;
 	private int lastFree = 0;
 
+	/**
+	 * Whether {@link #keys} and {@link #next} are shared with a {@link Shape}, and so must be copied before a new key
+	 * is added.
+	 */
+	private boolean sharedShape;
+
 	private boolean weakKeys;
 	private boolean weakValues;
 
-	private int metatableFlags;
+	/**
+	 * The queue which this table's weak references are registered with. When any of them are cleared, we sweep the
+	 * table on the next modification, releasing values whose keys have been collected.
+	 */
+	private ReferenceQueue<Object> deadReferences;
+
+	/**
+	 * The number of non-nil values with positive integer keys.
+	 */
+	private int sequenceCount;
+
+	/**
+	 * A lower bound on the length of this table: every key from 1 to {@code border} is non-nil. If this is equal to
+	 * {@link #sequenceCount}, then this is the only border and so {@link #length()} does not need to search.
+	 */
+	private int border;
+
+	/**
+	 * The traversal index of the last key returned by {@link #next(LuaValue)}, so a {@code pairs} loop does not need to
+	 * look up each key again.
+	 */
+	private int lastNext = -1;
+
+	/**
+	 * Whether this table has been made immutable.
+	 *
+	 * @see #freeze()
+	 */
+	private boolean frozen;
+
+	/**
+	 * Cached lookups of metamethods when this table is used as a metatable, indexed by
+	 * {@link CachedMetamethod#ordinal()}. An entry is {@code null} if it has not been looked up yet. This is cleared
+	 * whenever a non-integer key is set.
+	 */
+	private LuaValue[] metamethods;
 	private LuaTable metatable;
 
 	/**
@@ -113,6 +172,24 @@ public final class LuaTable extends LuaValue {
 		resize(narray, nhash, false);
 	}
 
+	/**
+	 * Construct a table with the same hash layout as a previously created table. The table will be empty, but setting
+	 * any of the shape's keys will not require inserting a new node.
+	 *
+	 * @param narray capacity of array part
+	 * @param shape  The shape of the hash part, as returned by {@link #getShape()}.
+	 */
+	public LuaTable(int narray, Shape shape) {
+		super(TTABLE);
+		resize(narray, 0, false);
+
+		keys = shape.keys;
+		next = shape.next;
+		lastFree = shape.lastFree;
+		Arrays.fill(values = new Object[keys.length], NIL);
+		sharedShape = true;
+	}
+
 	/**
 	 * Construct table with named and unnamed parts.
 	 *
@@ -185,9 +262,8 @@ public final class LuaTable extends LuaValue {
 	 * @param nArray the number of array slots to preallocate in the table.
 	 */
 	public void presize(int nArray) {
-		if (nArray > array.length) {
-			array = setArrayVector(array, 1 << log2(nArray), false, weakValues);
-		}
+		checkMutable();
+		if (nArray > arrayLength()) growArray(1 << log2(nArray), false);
 	}
 
 	/**
@@ -196,7 +272,7 @@ public final class LuaTable extends LuaValue {
 	 * @return length of the array part, does not relate to count of objects in the table.
 	 */
 	public int getArrayLength() {
-		return array.length;
+		return arrayLength();
 	}
 
 	/**
@@ -205,7 +281,7 @@ public final class LuaTable extends LuaValue {
 	 * @return length of the hash part, does not relate to count of objects in the table.
 	 */
 	public int getHashLength() {
-		return nodes.length;
+		return keys.length;
 	}
 
 	@Override
@@ -214,12 +290,13 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void setMetatable(LuaTable mt) {
+		checkMutable();
 		metatable = mt;
 
 		boolean newWeakKeys = false, newWeakValues = false;
 
 		if (mt != null) {
-			LuaValue mode = mt.rawget(Constants.MODE);
+			LuaValue mode = mt.rawget(CachedMetamethod.MODE);
 			if (mode.isString()) {
 				String m = mode.toString();
 				if (m.indexOf('k') >= 0) newWeakKeys = true;
@@ -235,6 +312,7 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void useWeak(boolean newWeakKeys, boolean newWeakValues) {
+		checkMutable();
 		if (newWeakKeys != weakKeys || newWeakValues != weakValues) {
 			weakKeys = newWeakKeys;
 			weakValues = newWeakValues;
@@ -306,7 +384,8 @@ public final class LuaTable extends LuaValue {
 	}
 
 	/**
-	 * Concatenate the contents of a table efficiently, using {@link Buffer}
+	 * Concatenate the contents of a table efficiently. The length of the result is computed first, so the contents are
+	 * only copied once.
 	 *
 	 * @param sep {@link LuaString} separater to apply between elements
 	 * @param i   the first element index
@@ -315,15 +394,25 @@ public final class LuaTable extends LuaValue {
 	 * @throws LuaError When a value is not a string.
 	 */
 	public LuaValue concat(LuaString sep, int i, int j) throws LuaError {
-		Buffer sb = new Buffer();
-		if (i <= j) {
-			sb.append(rawget(i).checkLuaString());
-			while (++i <= j) {
-				sb.append(sep);
-				sb.append(rawget(i).checkLuaString());
-			}
+		if (i > j) return EMPTYSTRING;
+
+		long length = (long) sep.length * (j - (long) i);
+		for (int k = i; ; k++) {
+			LuaValue value = rawget(k);
+			length += value.checkLuaBaseString().length();
+			if (k == j) break;
 		}
-		return sb.toLuaString();
+		if (length > Integer.MAX_VALUE) throw new LuaError("resulting string too large");
+
+		byte[] bytes = new byte[(int) length];
+		int offset = 0;
+		for (int k = i; ; k++) {
+			LuaBaseString value = rawget(k).checkLuaBaseString();
+			offset = value.copyTo(0, bytes, offset, value.length());
+			if (k == j) break;
+			offset = sep.copyTo(bytes, offset);
+		}
+		return LuaString.valueOf(bytes);
 	}
 
 	@Override
@@ -338,15 +427,19 @@ public final class LuaTable extends LuaValue {
 
 
 	public int length() {
+		// If the positive integer keys are exactly 1..border, then that is the only border. Weak values may be
+		// removed without us noticing, so we can't trust the count there.
+		if (border == sequenceCount && !weakValues) return border;
+
 		int a = getArrayLength();
 		int n = a + 1, m = 0;
-		while (!rawget(n).isNil()) {
+		while (rawHas(n)) {
 			m = n;
 			n += a + getHashLength() + 1;
 		}
 		while (n > m + 1) {
 			int k = (n + m) / 2;
-			if (!rawget(k).isNil()) {
+			if (rawHas(k)) {
 				m = k;
 			} else {
 				n = k;
@@ -355,6 +448,19 @@ public final class LuaTable extends LuaValue {
 		return m;
 	}
 
+	/**
+	 * Determine whether this table has a non-nil value at a given index.
+	 *
+	 * @param key The index to check.
+	 * @return Whether {@link #rawget(int)} would return a non-nil value.
+	 */
+	private boolean rawHas(int key) {
+		if (key > 0 && key <= arrayLength()) return arrayHas(key - 1);
+
+		int node = rawgetNode(key);
+		return node != -1 && !nodeValue(node).isNil();
+	}
+
 	/**
 	 * Return table.maxn() as defined by lua 5.0.
 	 *
@@ -364,13 +470,11 @@ public final class LuaTable extends LuaValue {
 	 */
 	public double maxn() {
 		double n = 0;
-		for (int i = 0; i < array.length; i++) {
-			if (!strengthen(array[i]).isNil()) {
-				n = i + 1;
-			}
+		for (int i = 0, length = arrayLength(); i < length; i++) {
+			if (arrayHas(i)) n = i + 1;
 		}
-		for (Node node : nodes) {
-			LuaValue value = node.key();
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue value = nodeKey(i);
 			if (value.type() == Constants.TNUMBER) {
 				double key = value.toDouble();
 				if (key > n) n = key;
@@ -407,22 +511,83 @@ public final class LuaTable extends LuaValue {
 	 * @see #isNil()
 	 */
 	public Varargs next(LuaValue key) throws LuaError {
-		int i = findIndex(key);
-		if (i < 0) throw new LuaError("invalid key to 'next'");
+		int i = nextIndex(key, lastNext);
+		if (!frozen) lastNext = i;
+		return i < 0 ? NIL : varargsOf(keyAt(i), valueAt(i));
+	}
 
-		for (; i < array.length; i++) {
-			LuaValue value = strengthen(array[i]);
-			if (!value.isNil()) return varargsOf(valueOf(i + 1), value);
+	/**
+	 * Find the traversal index of the entry following {@code key}.
+	 *
+	 * If {@code hint} is the index {@code key} was returned at, the key does not need to be looked up again. A stale
+	 * hint (for instance, if the table has been resized) is detected and ignored.
+	 *
+	 * @param key  The previous key, or {@link Constants#NIL} to start at the beginning.
+	 * @param hint The traversal index of {@code key}, or {@code -1} if unknown.
+	 * @return The traversal index of the next entry, or {@code -1} if there are no more.
+	 * @throws LuaError If the supplied key is invalid.
+	 * @see #keyAt(int)
+	 * @see #valueAt(int)
+	 */
+	public int nextIndex(LuaValue key, int hint) throws LuaError {
+		int i;
+		if (hint >= 0 && isIndexOf(hint, key)) {
+			i = hint + 1;
+		} else {
+			i = findIndex(key);
+			if (i < 0) throw new LuaError("invalid key to 'next'");
 		}
 
-		i -= array.length;
-		for (; i < nodes.length; i++) {
-			Node node = nodes[i];
-			LuaValue value = node.value();
-			if (!node.key().isNil() && !value.isNil()) return varargsOf(node.key(), value);
+		int arrayLength = arrayLength();
+		for (; i < arrayLength; i++) {
+			if (arrayHas(i)) return i;
 		}
 
-		return NIL;
+		for (int node = i - arrayLength; node < keys.length; node++) {
+			if (!nodeValue(node).isNil() && !nodeKey(node).isNil()) return node + arrayLength;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Get the key at a traversal index returned by {@link #nextIndex(LuaValue, int)}.
+	 *
+	 * @param index The traversal index.
+	 * @return The key at this index.
+	 */
+	public LuaValue keyAt(int index) {
+		int arrayLength = arrayLength();
+		return index < arrayLength ? valueOf(index + 1) : nodeKey(index - arrayLength);
+	}
+
+	/**
+	 * Get the value at a traversal index returned by {@link #nextIndex(LuaValue, int)}.
+	 *
+	 * @param index The traversal index.
+	 * @return The value at this index.
+	 */
+	public LuaValue valueAt(int index) {
+		int arrayLength = arrayLength();
+		return index < arrayLength ? arrayGet(index) : nodeValue(index - arrayLength);
+	}
+
+	/**
+	 * Create a cursor over this table's entries. This does not allocate on each step, and so is cheaper than
+	 * {@link #next(LuaValue)} for traversals from Java.
+	 *
+	 * @return The new cursor, positioned before the first entry.
+	 */
+	public Cursor cursor() {
+		return new Cursor(this);
+	}
+
+	private boolean isIndexOf(int index, LuaValue key) {
+		int arrayLength = arrayLength();
+		if (index < arrayLength) return arraySlot(key) == index + 1;
+
+		index -= arrayLength;
+		return index < keys.length && nodeKey(index) == key;
 	}
 
 	/**
@@ -437,23 +602,16 @@ public final class LuaTable extends LuaValue {
 
 		// Its in the array part so just return that
 		int arrayIndex = arraySlot(key);
-		if (arrayIndex > 0 && arrayIndex <= array.length) return arrayIndex;
-		if (nodes.length == 0) return -1;
+		if (arrayIndex > 0 && arrayIndex <= arrayLength()) return arrayIndex;
+		if (keys.length == 0) return -1;
 
 		// Must be in the main part so try to find it in the chain.
 		int idx = hashSlot(key);
-		Node node = nodes[idx];
 		while (true) {
-			if (node.key().equals(key)) {
-				return idx + array.length + 1;
-			}
+			if (nodeKey(idx).equals(key)) return idx + arrayLength() + 1;
 
-			if (node.next >= 0) {
-				idx = node.next;
-				node = nodes[node.next];
-			} else {
-				return -1;
-			}
+			idx = next[idx];
+			if (idx < 0) return -1;
 		}
 	}
 
@@ -543,7 +701,7 @@ public final class LuaTable extends LuaValue {
 	 * @return slot to use
 	 */
 	private int hashSlot(LuaValue key) {
-		return hashSlot(key, nodes.length - 1);
+		return hashSlot(key, keys.length - 1);
 	}
 
 	private void dropWeakArrayValues() {
@@ -644,19 +802,68 @@ public final class LuaTable extends LuaValue {
 	 */
 	public int prepSort() throws LuaError {
 		if (weakValues) dropWeakArrayValues();
-		int n = array.length;
-		while (n > 0 && array[n - 1] == NIL) {
+		int n = arrayLength();
+		while (n > 0 && !arrayHas(n - 1)) {
 			--n;
 		}
 
 		return n;
 	}
 
+	/**
+	 * Sort the first {@code count} entries of the array part in place, if they are all numbers or all strings. These
+	 * are ordered without metamethods, and so can be sorted directly rather than going through
+	 * {@link #compare(LuaState, int, int, LuaValue)}.
+	 *
+	 * @param count The number of entries to sort, as returned by {@link #prepSort()}.
+	 * @return If the entries were sorted. When {@code false}, the table is left unchanged.
+	 */
+	public boolean sortPrimitive(int count) {
+		if (weakValues) return false;
+		checkMutable();
+
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			for (int i = 0; i < count; i++) {
+				double value = numbers[i];
+				if (value != value) return false;
+			}
+
+			Arrays.sort(numbers, 0, count);
+			return true;
+		}
+
+		Object[] array = this.array;
+		int type = ((LuaValue) array[0]).type();
+		if (type != TNUMBER && type != TSTRING) return false;
+		for (int i = 1; i < count; i++) {
+			if (((LuaValue) array[i]).type() != type) return false;
+		}
+
+		if (type == TSTRING) {
+			// Flatten any ropes first, so they are not flattened again on each comparison.
+			LuaString[] values = new LuaString[count];
+			for (int i = 0; i < count; i++) values[i] = ((LuaBaseString) array[i]).strvalue();
+			Arrays.sort(values, LuaString::compare);
+			System.arraycopy(values, 0, array, 0, count);
+		} else {
+			double[] values = new double[count];
+			for (int i = 0; i < count; i++) {
+				double value = values[i] = ((LuaValue) array[i]).toDouble();
+				if (value != value) return false;
+			}
+			Arrays.sort(values);
+			for (int i = 0; i < count; i++) array[i] = valueOf(values[i]);
+		}
+
+		return true;
+	}
+
 	public boolean compare(LuaState state, int i, int j, LuaValue cmpfunc) throws LuaError, UnwindThrowable {
 		LuaValue a, b;
 
-		a = strengthen(array[i]);
-		b = strengthen(array[j]);
+		a = arrayGet(i);
+		b = arrayGet(j);
 
 		if (a.isNil() || b.isNil()) {
 			return false;
@@ -669,6 +876,17 @@ public final class LuaTable extends LuaValue {
 	}
 
 	public void swap(int i, int j) {
+		checkMutable();
+		if (arrayHas(i) != arrayHas(j)) border = Math.min(border, Math.min(i, j));
+
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			double a = numbers[i];
+			numbers[i] = numbers[j];
+			numbers[j] = a;
+			return;
+		}
+
 		Object a = array[i];
 		array[i] = array[j];
 		array[j] = a;
@@ -682,33 +900,22 @@ public final class LuaTable extends LuaValue {
 	 * @throws LuaError If iterating the table fails.
 	 */
 	public int keyCount() throws LuaError {
-		LuaValue k = NIL;
-		for (int i = 0; true; i++) {
-			Varargs n = next(k);
-			if ((k = n.first()).isNil()) {
-				return i;
-			}
-		}
+		int count = 0;
+		for (int i = nextIndex(NIL, -1); i >= 0; i = nextIndex(keyAt(i), i)) count++;
+		return count;
 	}
 
 	/**
 	 * This may be deprecated in a future release.
-	 * It is recommended to use next() instead
+	 * It is recommended to use {@link #cursor()} instead
 	 *
 	 * @return array of keys in the table
 	 * @throws LuaError If iterating the table fails.
 	 */
 	public LuaValue[] keys() throws LuaError {
 		List<LuaValue> l = new ArrayList<>();
-		LuaValue k = NIL;
-		while (true) {
-			Varargs n = next(k);
-			if ((k = n.first()).isNil()) {
-				break;
-			}
-			l.add(k);
-		}
-
+		Cursor cursor = cursor();
+		while (cursor.next()) l.add(cursor.key());
 		return l.toArray(new LuaValue[l.size()]);
 	}
 
@@ -730,7 +937,7 @@ public final class LuaTable extends LuaValue {
 	/**
 	 * Resize the table
 	 */
-	private static Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange, boolean weakValues) {
+	private Object[] setArrayVector(Object[] oldArray, int n, boolean metaChange) {
 		Object[] newArray = new Object[n];
 		int len = Math.min(n, oldArray.length);
 		if (metaChange) {
@@ -748,6 +955,77 @@ public final class LuaTable extends LuaValue {
 		return newArray;
 	}
 
+	private void growArray(int n, boolean metaChange) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			int oldLength = numbers.length;
+			numbers = this.numbers = Arrays.copyOf(numbers, n);
+			Arrays.fill(numbers, oldLength, n, Double.NaN);
+		} else {
+			array = setArrayVector(array, n, metaChange);
+		}
+	}
+
+	/**
+	 * Convert a {@link #numbers} array part into a normal {@link #array}.
+	 */
+	private void deoptimizeArray() {
+		double[] numbers = this.numbers;
+		Object[] array = new Object[numbers.length];
+		for (int i = 0; i < numbers.length; i++) {
+			double value = numbers[i];
+			array[i] = value == value ? valueOf(value) : NIL;
+		}
+
+		this.array = array;
+		this.numbers = null;
+	}
+
+	private int arrayLength() {
+		double[] numbers = this.numbers;
+		return numbers != null ? numbers.length : array.length;
+	}
+
+	private boolean arrayHas(int index) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			double value = numbers[index];
+			return value == value;
+		}
+
+		return !strengthen(array[index]).isNil();
+	}
+
+	private LuaValue arrayGet(int index) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			double value = numbers[index];
+			return value == value ? valueOf(value) : NIL;
+		}
+
+		return strengthen(array[index]);
+	}
+
+	private void arraySet(int index, LuaValue value) {
+		double[] numbers = this.numbers;
+		if (numbers != null) {
+			if (value.type() == TNUMBER) {
+				double number = value.toDouble();
+				if (number == number) {
+					numbers[index] = number;
+					return;
+				}
+			} else if (value.isNil()) {
+				numbers[index] = Double.NaN;
+				return;
+			}
+
+			deoptimizeArray();
+		}
+
+		array[index] = weakValues ? weaken(value) : value;
+	}
+
 	private static int countInt(LuaValue key, int[] nums) {
 		int idx = arraySlot(key);
 		if (idx != 0) {
@@ -772,14 +1050,13 @@ public final class LuaTable extends LuaValue {
 		for (lg = 0, ttlg = 1; lg <= 31; lg++, ttlg *= 2) {
 			int lc = 0;
 			int lim = ttlg;
-			if (lim > array.length) {
-				lim = array.length; // Adjust upper limit
+			if (lim > arrayLength()) {
+				lim = arrayLength(); // Adjust upper limit
 				if (i > lim) break;
 			}
 
 			for (; i <= lim; i++) {
-				LuaValue value = strengthen(array[i - 1]);
-				if (!value.isNil()) lc++;
+				if (arrayHas(i - 1)) lc++;
 			}
 			nums[lg] += lc;
 			ause += lc;
@@ -789,14 +1066,17 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void setNodeVector(int size) {
+		sharedShape = false;
 		if (size == 0) {
-			nodes = EMPTY_NODES;
+			keys = values = EMPTY_ARRAY;
+			next = EMPTY_NEXT;
 			lastFree = 0;
 		} else {
 			int lsize = log2(size);
 			size = 1 << lsize;
-			Node[] nodes = this.nodes = new Node[size];
-			for (int i = 0; i < size; i++) nodes[i] = new Node(weakKeys, weakValues);
+			Arrays.fill(keys = new Object[size], NIL);
+			Arrays.fill(values = new Object[size], NIL);
+			Arrays.fill(next = new int[size], -1);
 
 			// All positions are free
 			lastFree = size - 1;
@@ -804,24 +1084,30 @@ public final class LuaTable extends LuaValue {
 	}
 
 	private void resize(int newArraySize, int newHashSize, boolean modeChange) {
-		int oldArraySize = array.length;
-		int oldHashSize = nodes.length;
-
-		if (newArraySize != 0 && newHashSize != 0 && newArraySize == oldArraySize && newHashSize == oldHashSize && !modeChange) {
-			throw new IllegalStateException("Attempting to resize with no change");
-		}
+		int oldArraySize = arrayLength();
+		int oldHashSize = keys.length;
 
 		// Array part must grow
-		if (newArraySize > oldArraySize) {
-			array = setArrayVector(array, newArraySize, modeChange, weakValues);
-		}
+		if (newArraySize > oldArraySize) growArray(newArraySize, modeChange);
+
+		// Moving values between the array and hash part will update the sequence counts, so save them.
+		int sequenceCount = this.sequenceCount, border = this.border;
 
-		Node[] oldNode = nodes;
+		Object[] oldKeys = keys, oldValues = values;
 		setNodeVector(newHashSize);
 
-		if (newArraySize < oldArraySize) {
+		if (newArraySize < oldArraySize && numbers != null) {
+			double[] oldNumbers = numbers;
+			numbers = Arrays.copyOf(oldNumbers, newArraySize);
+
+			// Copy values out of array part into the hash
+			for (int i = newArraySize; i < oldArraySize; i++) {
+				double value = oldNumbers[i];
+				if (value == value) rawset(i + 1, valueOf(value));
+			}
+		} else if (newArraySize < oldArraySize) {
 			Object[] oldArray = array;
-			array = setArrayVector(oldArray, newArraySize, modeChange, weakValues);
+			array = setArrayVector(oldArray, newArraySize, modeChange);
 
 			// Copy values out of array part into the hash
 			for (int i = newArraySize; i < oldArraySize; i++) {
@@ -829,7 +1115,7 @@ public final class LuaTable extends LuaValue {
 				if (!value.isNil()) rawset(i + 1, value);
 			}
 
-		} else if (newArraySize == oldArraySize && modeChange) {
+		} else if (newArraySize == oldArraySize && modeChange && numbers == null) {
 			Object[] values = array;
 			for (int i = 0; i < oldArraySize; i++) {
 				LuaValue value = strengthen(values[i]);
@@ -837,13 +1123,21 @@ public final class LuaTable extends LuaValue {
 			}
 		}
 
-		// Re-insert elements from hash part
+		// Re-insert elements from hash part. The weak mode may have changed, so we strengthen each entry rather than
+		// using nodeKey/nodeValue.
 		for (int i = oldHashSize - 1; i >= 0; i--) {
-			Node old = oldNode[i];
-			LuaValue key = old.key();
-			LuaValue value = old.value();
+			LuaValue key = strengthen(oldKeys[i]);
+			LuaValue value = strengthen(oldValues[i]);
 			if (!key.isNil() && !value.isNil()) rawset(key, value);
 		}
+
+		if (modeChange) {
+			recountSequence();
+			if (!weakKeys && !weakValues) deadReferences = null;
+		} else {
+			this.sequenceCount = sequenceCount;
+			this.border = border;
+		}
 	}
 
 	private void rehash(LuaValue extraKey, boolean mode) {
@@ -857,11 +1151,10 @@ public final class LuaTable extends LuaValue {
 		// Count the number of hash values that can be moved to the array, as well as the total count.
 		// See numusehash in ltable.c
 		{
-			int i = nodes.length;
+			int i = keys.length;
 			while (--i >= 0) {
-				Node node = nodes[i];
-				LuaValue key = node.key();
-				if (!key.isNil()) {
+				LuaValue key = nodeKey(i);
+				if (!key.isNil() && !nodeValue(i).isNil()) {
 					arrayCount += countInt(key, nums);
 					totalCount++;
 				}
@@ -909,12 +1202,9 @@ public final class LuaTable extends LuaValue {
 	 * @return The first slot in the map
 	 */
 	private int getFreePos() {
-		if (nodes.length == 0) return -1;
+		if (keys.length == 0) return -1;
 		while (lastFree >= 0) {
-			Node last = nodes[lastFree--];
-			if (last.key == NIL) {
-				return lastFree + 1;
-			}
+			if (keys[lastFree--] == NIL) return lastFree + 1;
 		}
 
 		return -1;
@@ -928,184 +1218,430 @@ public final class LuaTable extends LuaValue {
 	 * colliding node is in its main position and the new key goes to an empty position.
 	 *
 	 * @param key The key to set
+	 * @return The node for this key, or {@code -1} if the table was rehashed instead.
 	 * @throws IllegalArgumentException If this key cannot be used.
 	 */
-	private Node newKey(LuaValue key) {
+	private int newKey(LuaValue key) {
 		if (key.isNil()) throw new IllegalArgumentException("table index is nil");
 
 		// Rehash and let the rawgetter handle it
-		if (nodes.length == 0) {
+		if (keys.length == 0) {
 			rehash(key, false);
-			return null;
+			return -1;
+		}
+
+		if (sharedShape) {
+			this.keys = this.keys.clone();
+			this.next = this.next.clone();
+			sharedShape = false;
 		}
 
-		Node mainNode = nodes[hashSlot(key)];
-		LuaValue mainKey = mainNode.key();
-		if (!mainKey.isNil() && !mainNode.value().isNil()) {
+		Object[] keys = this.keys, values = this.values;
+		int[] next = this.next;
+
+		int mainNode = hashSlot(key);
+		LuaValue mainKey = nodeKey(mainNode);
+		if (!mainKey.isNil() && !nodeValue(mainNode).isNil()) {
 			// If we've got a collision then
-			final int freePos = getFreePos();
+			final int freeNode = getFreePos();
 
-			if (freePos < 0) {
+			if (freeNode < 0) {
 				rehash(key, false);
-				return null;
+				return -1;
 			}
 
-			final Node freeNode = nodes[freePos];
-
-			int otherPos = hashSlot(mainKey);
-			Node otherNode = nodes[otherPos];
-
+			int otherNode = hashSlot(mainKey);
 			if (otherNode != mainNode) {
 				// If the colliding position isn't at its main position then we move it to a free position
 
 				// Walk the chain to find the node just before the desired one
-				while (nodes[otherNode.next] != mainNode) {
-					otherNode = nodes[otherNode.next];
-				}
+				while (next[otherNode] != mainNode) otherNode = next[otherNode];
 
 				// Rechain other to point to the free position
-				otherNode.next = freePos;
+				next[otherNode] = freeNode;
 
 				// Copy colliding node into free position
-				freeNode.key = mainNode.key;
-				freeNode.value = mainNode.value;
-				freeNode.next = mainNode.next;
+				keys[freeNode] = keys[mainNode];
+				values[freeNode] = values[mainNode];
+				next[freeNode] = next[mainNode];
 
 				// Clear main node
-				mainNode.next = -1;
-				mainNode.key = NIL;
-				mainNode.value = NIL;
+				next[mainNode] = -1;
+				keys[mainNode] = NIL;
+				values[mainNode] = NIL;
 			} else {
 				// Colliding node is in the main position so we will assign to a free position.
 
-				if (mainNode.next != -1) {
+				if (next[mainNode] != -1) {
 					// We're inserting "after" the first node in the linked list so change the
 					// next node.
-					freeNode.next = mainNode.next;
+					next[freeNode] = next[mainNode];
 				} else {
-					assert freeNode.next == -1;
+					assert next[freeNode] == -1;
 				}
 
 				// Insert after the main node
-				mainNode.next = freePos;
+				next[mainNode] = freeNode;
 
 				mainNode = freeNode;
 			}
 		}
 
-		mainNode.key = weakKeys ? weaken(key) : key;
+		keys[mainNode] = weakKeys ? weaken(key) : key;
 
 		return mainNode;
 	}
 
-	private Node rawgetNode(int search) {
-		if (nodes.length == 0) return null;
+	private int rawgetNode(int search) {
+		if (keys.length == 0) return -1;
 
-		Node node = nodes[hashmod(search, nodes.length - 1)];
+		int node = hashmod(search, keys.length - 1);
 		while (true) {
-			LuaValue key = node.key();
-			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
+			LuaValue key = nodeKey(node);
+			if (key instanceof LuaInteger && ((LuaInteger) key).v == search) return node;
+
+			node = next[node];
+			if (node == -1) return -1;
 		}
 	}
 
-	private Node rawgetNode(LuaValue search) {
-		if (nodes.length == 0) return null;
+	private int rawgetNode(LuaValue search) {
+		if (keys.length == 0) return -1;
 
-		int slot = hashSlot(search);
-		Node node = nodes[slot];
+		int node = hashSlot(search);
 		while (true) {
-			LuaValue key = node.key();
-			if (key.equals(search)) {
-				return node;
-			} else {
-				int next = node.next;
-				if (next == -1) return null;
-				node = nodes[next];
-			}
+			if (nodeKey(node).equals(search)) return node;
+
+			node = next[node];
+			if (node == -1) return -1;
 		}
 	}
 
+	/**
+	 * Get the key of a node, converting it to a strong reference if required. If the key has been collected then
+	 * this clears the node's value (marking it as "dead").
+	 *
+	 * @param node The node to get the key of.
+	 * @return The node's key.
+	 */
+	private LuaValue nodeKey(int node) {
+		Object key = keys[node];
+		if (key == NIL || !weakKeys) return (LuaValue) key;
+
+		LuaValue strengthened = strengthen(key);
+		if (strengthened.isNil()) values[node] = NIL; // We preserve the key so we can check it is nil
+
+		return strengthened;
+	}
+
+	/**
+	 * Get the value of a node, converting it to a strong reference if required.
+	 *
+	 * @param node The node to get the value of.
+	 * @return The node's value.
+	 */
+	private LuaValue nodeValue(int node) {
+		Object value = values[node];
+		if (value == NIL || !weakValues) return (LuaValue) value;
+
+		LuaValue strengthened = strengthen(value);
+		if (strengthened.isNil()) values[node] = NIL;
+		return strengthened;
+	}
+
 	public LuaValue rawget(int search) {
-		if (search > 0 && search <= array.length) {
-			return strengthen(array[search - 1]);
-		} else if (nodes.length == 0) {
+		if (search > 0 && search <= arrayLength()) {
+			return arrayGet(search - 1);
+		} else if (keys.length == 0) {
 			return NIL;
 		} else {
-			Node node = rawgetNode(search);
-			return node == null ? NIL : node.value();
+			int node = rawgetNode(search);
+			return node == -1 ? NIL : nodeValue(node);
 		}
 	}
 
 	public LuaValue rawget(LuaValue search) {
 		if (search instanceof LuaInteger) return rawget(((LuaInteger) search).v);
 
-		Node node = rawgetNode(search);
-		return node == null ? NIL : node.value();
+		int node = rawgetNode(search);
+		return node == -1 ? NIL : nodeValue(node);
 	}
 
 	public LuaValue rawget(CachedMetamethod search) {
-		int flag = 1 << search.ordinal();
-		if ((metatableFlags & flag) != 0) return NIL;
+		LuaValue[] metamethods = this.metamethods;
+		if (metamethods == null) metamethods = this.metamethods = new LuaValue[METAMETHOD_COUNT];
+
+		LuaValue value = metamethods[search.ordinal()];
+		if (value != null) return value;
+
+		int node = rawgetNode(search.getKey());
+		value = node == -1 ? NIL : nodeValue(node);
+
+		// Don't keep weak values alive by caching them.
+		if (!weakValues || value.isNil()) metamethods[search.ordinal()] = value;
+		return value;
+	}
+
+	/**
+	 * Find the slot in the hash part which holds a given key. This may be used as a hint for
+	 * {@link #rawgetSlot(int, LuaString)} and {@link #rawsetSlot(int, LuaString, LuaValue)}, allowing callers to cache
+	 * lookups of a constant key.
+	 *
+	 * @param key The key to find.
+	 * @return The slot holding this key, or {@code -1} if it is not present in the hash part.
+	 */
+	public int findSlot(LuaString key) {
+		if (keys.length == 0) return -1;
+
+		int slot = hashSlot(key);
+		while (true) {
+			if (key.raweq(nodeKey(slot))) return slot;
 
-		Node node = rawgetNode(search.getKey());
-		if (node != null) {
-			LuaValue value = node.value();
-			if (!value.isNil()) return value;
+			slot = next[slot];
+			if (slot == -1) return -1;
 		}
+	}
+
+	private boolean isSlot(int slot, LuaString key) {
+		Object[] keys = this.keys;
+		if (slot < 0 || slot >= keys.length) return false;
+
+		Object nodeKey = keys[slot];
+		return nodeKey == key || (nodeKey instanceof LuaString && key.raweq((LuaString) nodeKey));
+	}
+
+	/**
+	 * Get a value in the hash part of this table using a slot from {@link #findSlot(LuaString)}.
+	 *
+	 * @param slot The slot to look up. This may be stale, or belong to another table.
+	 * @param key  The key to look up.
+	 * @return The value for this key, or {@code null} if {@code slot} does not hold {@code key}.
+	 */
+	public LuaValue rawgetSlot(int slot, LuaString key) {
+		return isSlot(slot, key) ? nodeValue(slot) : null;
+	}
 
-		metatableFlags |= flag;
-		return NIL;
+	/**
+	 * Set a value in the hash part of this table using a slot from {@link #findSlot(LuaString)}.
+	 *
+	 * @param slot  The slot to set. This may be stale, or belong to another table.
+	 * @param key   The key to set.
+	 * @param value The value to set.
+	 * @return If the value was set. This will be {@code false} if {@code slot} does not hold {@code key}.
+	 */
+	public boolean rawsetSlot(int slot, LuaString key, LuaValue value) {
+		if (!isSlot(slot, key)) return false;
+		checkMutable();
+		if (deadReferences != null) dropDeadReferences();
+
+		values[slot] = weakValues ? weaken(value) : value;
+		metamethods = null;
+		return true;
 	}
 
 	public void rawset(int key, LuaValue value) {
+		checkMutable();
+		if (deadReferences != null) dropDeadReferences();
+
 		LuaValue valueOf = null;
 		do {
-			if (key > 0 && key <= array.length) {
-				array[key - 1] = weakValues ? weaken(value) : value;
+			if (key > 0 && key <= arrayLength()) {
+				boolean had = arrayHas(key - 1);
+				arraySet(key - 1, value);
+				updateSequence(key, had, value);
 				return;
 			}
 
 			if (valueOf == null) valueOf = valueOf(key);
 
-			Node node = rawgetNode(valueOf);
-			if (node == null) node = newKey(valueOf);
+			int node = rawgetNode(valueOf);
+			boolean had = node != -1 && !nodeValue(node).isNil();
+			if (node == -1) node = newKey(valueOf);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
+			if (node != -1) {
+				values[node] = weakValues ? weaken(value) : value;
+				if (key > 0) updateSequence(key, had, value);
 				return;
 			}
 		} while (true);
 	}
 
+	private void updateSequence(int key, boolean had, LuaValue value) {
+		boolean has = !value.isNil();
+		if (had == has) return;
+
+		if (has) {
+			sequenceCount++;
+			if (key == border + 1) border++;
+		} else {
+			sequenceCount--;
+			if (key <= border) border = key - 1;
+		}
+	}
+
+	/**
+	 * Recompute {@link #sequenceCount} and {@link #border} from scratch.
+	 */
+	private void recountSequence() {
+		int count = 0;
+		for (int i = 0, length = arrayLength(); i < length; i++) {
+			if (arrayHas(i)) count++;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			LuaValue key = nodeKey(i);
+			if (key instanceof LuaInteger && ((LuaInteger) key).v > 0 && !nodeValue(i).isNil()) count++;
+		}
+
+		int border = 0;
+		while (border < count && rawHas(border + 1)) border++;
+
+		this.sequenceCount = count;
+		this.border = border;
+	}
+
 	public void rawset(LuaValue key, LuaValue value) {
 		if (key instanceof LuaInteger) {
 			rawset(((LuaInteger) key).v, value);
 			return;
 		}
 
+		checkMutable();
+		if (deadReferences != null) dropDeadReferences();
+
 		do {
-			Node node = rawgetNode(key);
-			if (node == null) node = newKey(key);
+			int node = rawgetNode(key);
+			if (node == -1) node = newKey(key);
 
 			// newKey will have handled this otherwise
-			if (node != null) {
-				// if (value.isNil() && !weakKeys) node.key = weaken((LuaValue) node.key);
-				node.value = weakValues ? weaken(value) : value;
-				metatableFlags = 0;
+			if (node != -1) {
+				values[node] = weakValues ? weaken(value) : value;
+				metamethods = null;
 				return;
 			}
 		} while (true);
 	}
 	//endregion
 
+	//region Number arrays
+
+	/**
+	 * Store the array part of this table as a {@code double[]} while it only contains numbers. This halves the memory
+	 * used by arrays of non-integer numbers, but requires values to be boxed each time they are read. The array part
+	 * is converted back as soon as a non-number is stored in it.
+	 *
+	 * This has no effect if the array part already contains non-number values.
+	 *
+	 * @see LuaState#numberArrays
+	 */
+	public void useNumberArray() {
+		if (numbers != null) return;
+		checkMutable();
+
+		Object[] array = this.array;
+		double[] numbers = array.length == 0 ? EMPTY_NUMBERS : new double[array.length];
+		for (int i = 0; i < array.length; i++) {
+			LuaValue value = strengthen(array[i]);
+			if (value.isNil()) {
+				numbers[i] = Double.NaN;
+			} else if (value.type() == TNUMBER && !Double.isNaN(value.toDouble())) {
+				numbers[i] = value.toDouble();
+			} else {
+				return;
+			}
+		}
+
+		this.numbers = numbers;
+		this.array = EMPTY_ARRAY;
+	}
+	//endregion
+
+	//region Freezing
+
+	/**
+	 * Make this table immutable. Any further attempt to modify it, or change its metatable, will throw a
+	 * {@link LuaError} (wrapped in an {@link UncheckedLuaError}).
+	 *
+	 * Reads usually update this table's caches, such as the traversal position of {@link #next(LuaValue)}. A frozen
+	 * table instead fills its metamethod cache up front and skips the others, so reads do not write to it at all. It
+	 * may then be shared between multiple {@link LuaState}s and threads, as long as it is frozen before being
+	 * published.
+	 *
+	 * @return This table.
+	 * @throws IllegalStateException If this table has weak keys or values, as these are cleared by the garbage
+	 *                               collector.
+	 * @see #isFrozen()
+	 */
+	public LuaTable freeze() {
+		if (weakKeys || weakValues) throw new IllegalStateException("Cannot freeze a weak table");
+		if (frozen) return this;
+
+		LuaValue[] metamethods = new LuaValue[METAMETHOD_COUNT];
+		for (CachedMetamethod metamethod : CachedMetamethod.values()) {
+			int node = rawgetNode(metamethod.getKey());
+			metamethods[metamethod.ordinal()] = node == -1 ? NIL : nodeValue(node);
+		}
+		this.metamethods = metamethods;
+		frozen = true;
+		return this;
+	}
+
+	/**
+	 * Determine whether this table is immutable.
+	 *
+	 * @return If this table has been frozen.
+	 * @see #freeze()
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkMutable() {
+		if (frozen) throw new UncheckedLuaError(new LuaError("attempt to modify a frozen table"));
+	}
+	//endregion
+
+	//region Shapes
+
+	/**
+	 * Get the shape of this table's hash part, allowing other tables to be created with the same layout.
+	 *
+	 * This table and any tables created from the shape share the same key arrays, which are copied as soon as any
+	 * of them adds a new key.
+	 *
+	 * @return This table's shape, or {@code null} if the hash part is empty, has weak keys or contains any non-string
+	 * keys.
+	 * @see #LuaTable(int, Shape)
+	 */
+	public Shape getShape() {
+		if (keys.length == 0 || weakKeys) return null;
+		for (Object key : keys) {
+			if (key != NIL && !(key instanceof LuaString)) return null;
+		}
+
+		// Frozen tables never add keys, so do not need to copy their layout.
+		if (!frozen) sharedShape = true;
+		return new Shape(keys, next, lastFree);
+	}
+
+	/**
+	 * The layout of a table's hash part, mapping each of its string keys to a slot.
+	 *
+	 * @see #getShape()
+	 */
+	public static final class Shape {
+		private final Object[] keys;
+		private final int[] next;
+		private final int lastFree;
+
+		private Shape(Object[] keys, int[] next, int lastFree) {
+			this.keys = keys;
+			this.next = next;
+			this.lastFree = lastFree;
+		}
+	}
+	//endregion
+
 	//region Weak references
 
 	/**
@@ -1114,19 +1650,47 @@ public final class LuaTable extends LuaValue {
 	 * @param value value to convert
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	private static Object weaken(LuaValue value) {
+	private Object weaken(LuaValue value) {
 		switch (value.type()) {
 			case TFUNCTION:
 			case TTHREAD:
 			case TTABLE:
-				return new WeakReference<>(value);
+				return new WeakReference<>(value, referenceQueue());
 			case TUSERDATA:
-				return new WeakUserdata((LuaUserdata) value);
+				return new WeakUserdata((LuaUserdata) value, referenceQueue());
 			default:
 				return value;
 		}
 	}
 
+	private ReferenceQueue<Object> referenceQueue() {
+		ReferenceQueue<Object> queue = deadReferences;
+		if (queue == null) queue = deadReferences = new ReferenceQueue<>();
+		return queue;
+	}
+
+	/**
+	 * If any of this table's weak references have been cleared, remove their entries from the table.
+	 *
+	 * Dead keys are left in the hash part, as they may be part of another key's chain, but their values are cleared
+	 * so they can be collected. The node will be reused or dropped when the table is next rehashed.
+	 */
+	private void dropDeadReferences() {
+		ReferenceQueue<Object> queue = deadReferences;
+		if (queue.poll() == null) return;
+		while (queue.poll() != null) {
+			// Drain the queue: we sweep the whole table anyway.
+		}
+
+		if (weakValues) dropWeakArrayValues();
+
+		Object[] keys = this.keys;
+		for (int i = 0; i < keys.length; i++) {
+			// nodeKey and nodeValue clear the value if either have been collected.
+			if (keys[i] != NIL && !nodeKey(i).isNil()) nodeValue(i);
+		}
+	}
+
 	/**
 	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
 	 *
@@ -1146,6 +1710,62 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 
+	/**
+	 * A cursor over the entries of a table.
+	 *
+	 * To iterate over all key-value pairs in a table you can use
+	 * <pre> {@code
+	 * LuaTable.Cursor cursor = table.cursor();
+	 * while (cursor.next()) {
+	 *    process(cursor.key(), cursor.value());
+	 * }}</pre>
+	 *
+	 * As with {@link #next(LuaValue)}, existing fields may be modified or cleared during traversal, but new keys
+	 * should not be added.
+	 */
+	public static final class Cursor {
+		private static final int FINISHED = -2;
+
+		private final LuaTable table;
+		private int index = -1;
+		private LuaValue key = NIL;
+		private LuaValue value = NIL;
+
+		private Cursor(LuaTable table) {
+			this.table = table;
+		}
+
+		/**
+		 * Advance to the next entry.
+		 *
+		 * @return If there was another entry. When {@code false}, {@link #key()} and {@link #value()} return nil.
+		 * @throws LuaError If the current key was removed from the table.
+		 */
+		public boolean next() throws LuaError {
+			if (index == FINISHED) return false;
+
+			int index = table.nextIndex(key, this.index);
+			if (index < 0) {
+				this.index = FINISHED;
+				key = value = NIL;
+				return false;
+			}
+
+			this.index = index;
+			key = table.keyAt(index);
+			value = table.valueAt(index);
+			return true;
+		}
+
+		public LuaValue key() {
+			return key;
+		}
+
+		public LuaValue value() {
+			return value;
+		}
+	}
+
 	/**
 	 * Internal class to implement weak userdata values.
 	 */
@@ -1154,9 +1774,9 @@ public final class LuaTable extends LuaValue {
 		private final WeakReference<Object> ob;
 		private final LuaTable mt;
 
-		private WeakUserdata(LuaUserdata value) {
+		private WeakUserdata(LuaUserdata value, ReferenceQueue<Object> queue) {
 			ref = new WeakReference<>(value);
-			ob = new WeakReference<>(value.instance);
+			ob = new WeakReference<>(value.instance, queue);
 			mt = value.metatable;
 		}
 
@@ -1175,58 +1795,4 @@ public final class LuaTable extends LuaValue {
 		}
 	}
 	//endregion
-
-	/**
-	 * Represents a node in the hash element of the table.
-	 */
-	private static final class Node {
-		private final boolean weakKey;
-		private final boolean weakValue;
-		Object value = NIL;
-		Object key = NIL;
-		int next = -1;
-
-		Node(boolean weakKey, boolean weakValue) {
-			this.weakKey = weakKey;
-			this.weakValue = weakValue;
-		}
-
-		@Override
-		public String toString() {
-			String main = key + "=" + value;
-			if (next >= 0) main += "->" + next;
-			return main;
-		}
-
-		/**
-		 * Get the current key, converting it to a strong reference if
-		 * required. If it is nil then it clears the key and value (marking it
-		 * as "dead").
-		 *
-		 * @return The entry's key.
-		 */
-		LuaValue key() {
-			Object key = this.key;
-			if (key == NIL || !weakKey) return (LuaValue) key;
-
-			LuaValue strengthened = strengthen(key);
-			if (strengthened.isNil()) this.value = NIL; // We preserve the key so we can check it is nil
-
-			return strengthened;
-		}
-
-		/**
-		 * Get the current value, converting it to a strong reference if required.
-		 *
-		 * @return The entry's value.
-		 */
-		LuaValue value() {
-			Object value = this.value;
-			if (value == NIL || !weakValue) return (LuaValue) value;
-
-			LuaValue strengthened = strengthen(value);
-			if (strengthened.isNil()) this.value = NIL;
-			return strengthened;
-		}
-	}
 }
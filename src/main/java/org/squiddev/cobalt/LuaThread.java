@@ -441,6 +441,7 @@ public class LuaThread extends LuaValue {
 			state.currentThread = thread;
 			threader.set(args);
 			threader.running = true;
+			state.startBudget();
 
 			Runnable task = new Runnable() {
 				LuaFunction func = function;
@@ -489,6 +490,7 @@ public class LuaThread extends LuaValue {
 		} catch (InterruptedError e) {
 			throw e.getCause();
 		} finally {
+			state.pauseBudget();
 			threader.lock.unlock();
 		}
 	}
@@ -1311,7 +1311,7 @@ public abstract class LuaValue extends Varargs {
 		@Override
 		public Varargs asImmutable() {
 			Varargs rClone = r.asImmutable();
-			return rClone == r ? this : r;
+			return rClone == r ? this : new ArrayVarargs(v, rClone);
 		}
 	}
 
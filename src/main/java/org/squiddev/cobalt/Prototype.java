@@ -27,6 +27,8 @@ package org.squiddev.cobalt;
 import org.squiddev.cobalt.function.LocalVariable;
 import org.squiddev.cobalt.function.LuaInterpretedFunction;
 
+import java.lang.ref.WeakReference;
+
 import static org.squiddev.cobalt.compiler.LoadState.getShortName;
 
 /**
@@ -60,10 +62,105 @@ public final class Prototype {
 	public int is_vararg;
 	public int maxstacksize;
 
+	/* inline caches for table and global accesses, indexed by pc */
+	private int[] slotCache;
+
+	/* the last closure created by getSharedClosure */
+	private LuaInterpretedFunction sharedClosure;
+
+	/* table shapes for each NEWTABLE instruction, and the state which owns them */
+	private TableShapes tableShapes;
+
+	private static final Object NO_SHAPE = new Object();
+
+	/**
+	 * The largest hash part a shape may be taken from. Larger tables are unlikely to be representative of the other
+	 * tables a constructor creates, and would make every such table allocate a large hash part.
+	 */
+	private static final int MAX_SHAPE_SIZE = 32;
+
 	public LuaString sourceShort() {
 		return getShortName(source);
 	}
 
+	/**
+	 * Get the inline caches for this prototype's table and global accesses. Each instruction has a slot, holding the last hash slot
+	 * its key was found in.
+	 *
+	 * @return The cache for this prototype, with one entry for each instruction.
+	 * @see LuaTable#findSlot(LuaString)
+	 */
+	public int[] getSlotCache() {
+		int[] cache = slotCache;
+		if (cache == null || cache.length != code.length) cache = slotCache = new int[code.length];
+		return cache;
+	}
+
+	/**
+	 * Get a closure of this prototype, reusing the previously created one if it has the same environment. This should
+	 * only be used for prototypes without upvalues.
+	 *
+	 * @param env The environment of the closure.
+	 * @return The closure for this environment.
+	 * @see LuaState#shareClosures
+	 */
+	public LuaInterpretedFunction getSharedClosure(LuaTable env) {
+		LuaInterpretedFunction closure = sharedClosure;
+		if (closure == null || closure.getfenv() != env) {
+			closure = sharedClosure = new LuaInterpretedFunction(this, env);
+		}
+		return closure;
+	}
+
+	/**
+	 * Create a table for a {@code NEWTABLE} instruction. The first table created by an instruction is weakly
+	 * remembered, and subsequent tables share its shape.
+	 *
+	 * A shape is only taken from a table with at most {@link #MAX_SHAPE_SIZE} hash slots (or the constructor's own
+	 * hash size, if larger), so one unusually large table does not inflate every later one. Shapes are only recorded
+	 * for the first state to create a table here: a prototype may be shared between states running on different
+	 * threads, and taking a shape marks the first table as shared. Other states create plain tables.
+	 *
+	 * @param state  The current Lua state.
+	 * @param pc     The program counter of the instruction.
+	 * @param narray The size of the array part.
+	 * @param nhash  The size of the hash part, used if no shape is available.
+	 * @return The new table.
+	 * @see LuaState#tableShapes
+	 * @see LuaTable#getShape()
+	 */
+	public LuaTable newTable(LuaState state, int pc, int narray, int nhash) {
+		TableShapes cache = tableShapes;
+		if (cache == null || cache.shapes.length != code.length) cache = tableShapes = new TableShapes(state, code.length);
+		if (cache.owner.get() != state) return new LuaTable(narray, nhash);
+
+		Object[] shapes = cache.shapes;
+		Object shape = shapes[pc];
+		if (shape instanceof WeakReference) {
+			// Take the shape from the first table created here, now it has (hopefully) been populated.
+			LuaTable first = (LuaTable) ((WeakReference<?>) shape).get();
+			LuaTable.Shape newShape = first == null || first.getHashLength() > Math.max(MAX_SHAPE_SIZE, nhash)
+				? null : first.getShape();
+			shapes[pc] = shape = first == null ? null : newShape == null ? NO_SHAPE : newShape;
+		}
+
+		if (shape instanceof LuaTable.Shape) return new LuaTable(narray, (LuaTable.Shape) shape);
+
+		LuaTable table = new LuaTable(narray, nhash);
+		if (shape == null) shapes[pc] = new WeakReference<>(table);
+		return table;
+	}
+
+	private static final class TableShapes {
+		final WeakReference<LuaState> owner;
+		final Object[] shapes;
+
+		TableShapes(LuaState owner, int length) {
+			this.owner = new WeakReference<>(owner);
+			this.shapes = new Object[length];
+		}
+	}
+
 	public String toString() {
 		return source + ":" + linedefined + "-" + lastlinedefined;
 	}
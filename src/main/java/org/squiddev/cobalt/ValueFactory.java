@@ -327,6 +327,62 @@ public class ValueFactory {
 		}
 	}
 
+	/**
+	 * Construct an immutable {@link Varargs} from a copy of part of an array of {@link LuaValue}s.
+	 *
+	 * This is equivalent to {@code varargsOf(v, offset, length).asImmutable()}, but avoids allocating an intermediate
+	 * {@link Varargs}.
+	 *
+	 * @param v      The array of {@link LuaValue}s
+	 * @param offset number of initial values to skip in the array
+	 * @param length number of values to include from the array
+	 * @return {@link Varargs} containing the supplied values.
+	 * @see ValueFactory#varargsOf(LuaValue[], int, int)
+	 */
+	public static Varargs varargsCopyOf(final LuaValue[] v, final int offset, final int length) {
+		switch (length) {
+			case 0:
+				return Constants.NONE;
+			case 1:
+				return v[offset];
+			case 2:
+				return new LuaValue.PairVarargs(v[offset], v[offset + 1]);
+			default: {
+				LuaValue[] values = new LuaValue[length];
+				System.arraycopy(v, offset, values, 0, length);
+				return new LuaValue.ArrayVarargs(values, Constants.NONE);
+			}
+		}
+	}
+
+	/**
+	 * Construct an immutable {@link Varargs} from a copy of part of an array of {@link LuaValue}s.
+	 *
+	 * This is equivalent to {@code varargsOf(v, offset, length, more).asImmutable()}, but avoids allocating an
+	 * intermediate {@link Varargs}.
+	 *
+	 * @param v      The array of {@link LuaValue}s
+	 * @param offset number of initial values to skip in the array
+	 * @param length number of values to include from the array
+	 * @param more   {@link Varargs} contain values to include at the end
+	 * @return {@link Varargs} containing the supplied values.
+	 * @see ValueFactory#varargsOf(LuaValue[], int, int, Varargs)
+	 */
+	public static Varargs varargsCopyOf(final LuaValue[] v, final int offset, final int length, Varargs more) {
+		more = more.asImmutable();
+		switch (length) {
+			case 0:
+				return more;
+			case 1:
+				return new LuaValue.PairVarargs(v[offset], more);
+			default: {
+				LuaValue[] values = new LuaValue[length];
+				System.arraycopy(v, offset, values, 0, length);
+				return new LuaValue.ArrayVarargs(values, more);
+			}
+		}
+	}
+
 	/**
 	 * Construct a {@link Varargs} around a set of 2 or more {@link LuaValue}s.
 	 *
@@ -27,6 +27,8 @@ package org.squiddev.cobalt.debug;
 import org.squiddev.cobalt.*;
 import org.squiddev.cobalt.function.*;
 
+import java.util.Arrays;
+
 /**
  * Each thread will get a DebugState attached to it by the debug library
  * which will track function calls, hook functions, etc.
@@ -111,6 +113,16 @@ public final class DebugFrame {
 	 */
 	public static final int FLAG_TAIL = 1 << 13;
 
+	/**
+	 * Whether this function was suspended on a call or backwards jump, due to the state's execution budget being
+	 * exhausted.
+	 *
+	 * @see #flags
+	 * @see LuaState#consumeBudget()
+	 * @see org.squiddev.cobalt.function.LuaInterpretedFunction#resume(LuaState, Object, Varargs)
+	 */
+	public static final int FLAG_PREEMPTED = 1 << 14;
+
 	/**
 	 * The debug info's function
 	 */
@@ -131,6 +143,18 @@ public final class DebugFrame {
 	 */
 	public Upvalue[] stackUpvalues;
 
+	/**
+	 * The {@link #stack} and {@link #stackUpvalues} of a previous function in this frame, which may be reused by the
+	 * next one. {@link #spareStackSize} is the number of slots of the spare stack which the current function may
+	 * have written to, and so must be cleared when it returns.
+	 *
+	 * @see #allocateStack(int)
+	 * @see #allocateUpvalues(int)
+	 */
+	private LuaValue[] spareStack;
+	private int spareStackSize;
+	private Upvalue[] spareUpvalues;
+
 	public Object state;
 
 	public final DebugFrame previous;
@@ -182,11 +206,53 @@ public final class DebugFrame {
 		this.state = state;
 	}
 
+	/**
+	 * Get a stack for a Lua function running in this frame. This will reuse the stack of a previous function where
+	 * possible, avoiding an allocation on every call.
+	 *
+	 * @param size The minimum size of the stack
+	 * @return A stack at least {@code size} long, filled with {@link Constants#NIL}.
+	 */
+	public LuaValue[] allocateStack(int size) {
+		LuaValue[] stack = spareStack;
+		if (stack == null || stack.length < size) {
+			stack = spareStack = new LuaValue[size];
+			Arrays.fill(stack, Constants.NIL);
+		}
+
+		spareStackSize = size;
+		return stack;
+	}
+
+	/**
+	 * Get an array to store the open upvalues of a Lua function running in this frame. This will reuse the array of a
+	 * previous function where possible.
+	 *
+	 * @param size The minimum size of the array
+	 * @return An empty array at least {@code size} long.
+	 * @see #allocateStack(int)
+	 */
+	public Upvalue[] allocateUpvalues(int size) {
+		Upvalue[] upvalues = spareUpvalues;
+		return upvalues != null && upvalues.length >= size ? upvalues : new Upvalue[size];
+	}
+
 	public void cleanup() {
 		LuaInterpreter.closeAll(stackUpvalues);
 	}
 
 	void clear() {
+		// Close any remaining upvalues and clear the stack, so both can be reused by the next function.
+		if (stackUpvalues != null) {
+			LuaInterpreter.closeAll(stackUpvalues);
+			spareUpvalues = stackUpvalues;
+		}
+		if (spareStackSize > 0) {
+			// Only the first spareStackSize slots can have been written to, the rest are still nil.
+			Arrays.fill(spareStack, 0, spareStackSize, Constants.NIL);
+			spareStackSize = 0;
+		}
+
 		func = null;
 		closure = null;
 		stack = null;
@@ -83,6 +83,12 @@ public final class DebugState {
 	 */
 	public boolean hookcall, hookline, hookrtrn, inhook;
 
+	/**
+	 * Whether any hooks are fired on instructions (namely line or count hooks). When not set, the interpreter will
+	 * skip {@link DebugHandler#onInstruction(DebugState, DebugFrame, int)} entirely.
+	 */
+	public boolean hookinstr;
+
 	/**
 	 * Number of instructions to execute
 	 */
@@ -168,6 +174,14 @@ public final class DebugState {
 		this.hookline = line;
 		this.hookrtrn = rtrn;
 		this.hookfunc = func;
+
+		boolean hookinstr = line || count > 0;
+		if (hookinstr && !this.hookinstr) {
+			// The previous pc is not tracked when instruction hooks are disabled, so update it now to avoid firing
+			// spurious line hooks.
+			for (int i = 0; i <= top; i++) stack[i].oldPc = stack[i].pc;
+		}
+		this.hookinstr = hookinstr;
 	}
 
 	/**
@@ -24,11 +24,13 @@
  */
 package org.squiddev.cobalt.function;
 
+import org.squiddev.cobalt.LuaError;
 import org.squiddev.cobalt.LuaState;
 import org.squiddev.cobalt.LuaTable;
 import org.squiddev.cobalt.LuaValue;
 import org.squiddev.cobalt.lib.BaseLib;
 import org.squiddev.cobalt.lib.TableLib;
+import org.squiddev.cobalt.lib.UncheckedLuaError;
 
 import java.util.function.Supplier;
 
@@ -156,6 +158,25 @@ public abstract class LibFunction extends LuaFunction {
 		return name != null ? name : super.toString();
 	}
 
+	/**
+	 * Set the environment of this function.
+	 *
+	 * Functions bound to a frozen library table may be shared with other states, and so their environment cannot be
+	 * changed.
+	 *
+	 * @param env The new environment.
+	 * @throws UncheckedLuaError If this function is bound to a frozen table.
+	 * @see LuaState#sharedLibraries
+	 */
+	@Override
+	public void setfenv(LuaTable env) {
+		LuaTable current = this.env;
+		if (current != null && current.isFrozen()) {
+			throw new UncheckedLuaError(new LuaError("cannot change the environment of a shared library function"));
+		}
+		super.setfenv(env);
+	}
+
 	/**
 	 * Bind a set of library functions.
 	 *
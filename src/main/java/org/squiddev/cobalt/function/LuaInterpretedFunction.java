@@ -174,7 +174,10 @@ public final class LuaInterpretedFunction extends LuaClosure implements Resumabl
 		DebugState ds = DebugHandler.getDebugState(state);
 		DebugFrame di = ds.getStackUnsafe();
 
-		if ((di.flags & FLAG_HOOKED) != 0) {
+		if ((di.flags & FLAG_PREEMPTED) != 0) {
+			// We were suspended before a call or after a jump, so just continue from the current instruction.
+			di.flags &= ~FLAG_PREEMPTED;
+		} else if ((di.flags & FLAG_HOOKED) != 0) {
 			// We're resuming in from a hook
 			ds.inhook = false;
 			di.flags ^= FLAG_HOOKED;
@@ -39,101 +39,108 @@ import static org.squiddev.cobalt.debug.DebugFrame.*;
  */
 public final class LuaInterpreter {
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, int flags) throws LuaError, UnwindThrowable {
-		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(function.p.maxstacksize);
 
-		return setupCall(state, function, NONE, stack, flags);
+		return setupCall(ds, di, function, NONE, stack, flags);
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(p.maxstacksize);
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, arg, stack, flags);
+				return setupCall(ds, di, function, arg, stack, flags);
 
 			default:
 				stack[0] = arg;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(ds, di, function, NONE, stack, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(p.maxstacksize);
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, stack, flags);
+				return setupCall(ds, di, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2) : NONE, stack, flags);
 
 			case 1:
 				stack[0] = arg1;
-				return setupCall(state, function, arg2, stack, flags);
+				return setupCall(ds, di, function, arg2, stack, flags);
 
 			default:
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(ds, di, function, NONE, stack, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue arg1, LuaValue arg2, LuaValue arg3, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(p.maxstacksize);
 
 		switch (p.numparams) {
 			case 0:
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, stack, flags);
+				return setupCall(ds, di, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg1, arg2, arg3) : NONE, stack, flags);
 
 			case 1:
 				stack[0] = arg1;
-				return setupCall(state, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, stack, flags);
+				return setupCall(ds, di, function, p.is_vararg != 0 ? ValueFactory.varargsOf(arg2, arg3) : NONE, stack, flags);
 
 			case 2:
 				stack[0] = arg1;
 				stack[1] = arg2;
-				return setupCall(state, function, arg3, stack, flags);
+				return setupCall(ds, di, function, arg3, stack, flags);
 
 			default:
 				stack[0] = arg1;
 				stack[1] = arg2;
 				stack[2] = arg3;
-				return setupCall(state, function, NONE, stack, flags);
+				return setupCall(ds, di, function, NONE, stack, flags);
 		}
 	}
 
 	static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(p.maxstacksize);
 		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(ds, di, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
 	}
 
 	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, LuaValue[] args, int argStart, int argSize, Varargs varargs, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		LuaValue[] stack = new LuaValue[p.maxstacksize];
-		System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
+		DebugState ds = DebugHandler.getDebugState(state);
+		DebugFrame di = pushFrame(ds, flags);
+		LuaValue[] stack = di.allocateStack(p.maxstacksize);
 
 		varargs = ValueFactory.varargsOf(args, argStart, argSize, varargs);
 		for (int i = 0; i < p.numparams; i++) stack[i] = varargs.arg(i + 1);
 
-		return setupCall(state, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+		return setupCall(ds, di, function, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE, stack, flags);
+	}
+
+	private static DebugFrame pushFrame(DebugState ds, int flags) throws LuaError {
+		return (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
 	}
 
-	private static DebugFrame setupCall(LuaState state, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
+	private static DebugFrame setupCall(DebugState ds, DebugFrame di, LuaInterpretedFunction function, Varargs varargs, LuaValue[] stack, int flags) throws LuaError, UnwindThrowable {
 		Prototype p = function.p;
-		Upvalue[] upvalues = p.p.length > 0 ? new Upvalue[stack.length] : null;
+		Upvalue[] upvalues = p.p.length > 0 ? di.allocateUpvalues(stack.length) : null;
 		if (p.is_vararg >= VARARG_NEEDSARG) stack[p.numparams] = new LuaTable(varargs);
 
-		DebugState ds = DebugHandler.getDebugState(state);
-		DebugFrame di = (flags & FLAG_FRESH) != 0 ? ds.pushJavaInfo() : ds.pushInfo();
 		di.setFunction(function, varargs.asImmutable(), stack, upvalues);
 		di.flags |= flags;
 		di.extras = NONE;
@@ -152,6 +159,9 @@ public final class LuaInterpreter {
 		final DebugState ds = DebugHandler.getDebugState(state);
 		final DebugHandler handler = state.debug;
 
+		// Custom handlers may do additional work on each instruction, so we must always call them.
+		final boolean customHandler = handler != DebugHandler.INSTANCE;
+
 		newFrame:
 		while (true) {
 			// Fetch all info from the function
@@ -159,6 +169,7 @@ public final class LuaInterpreter {
 			final Upvalue[] upvalues = function.upvalues;
 			final int[] code = p.code;
 			final LuaValue[] k = p.k;
+			final int[] cache = p.getSlotCache();
 
 			// And from the debug info
 			final LuaValue[] stack = di.stack;
@@ -169,7 +180,11 @@ public final class LuaInterpreter {
 
 			// process instructions
 			while (true) {
-				handler.onInstruction(ds, di, pc);
+				if (customHandler || ds.hookinstr) {
+					handler.onInstruction(ds, di, pc);
+				} else {
+					di.pc = pc;
+				}
 
 				// pull out instruction
 				int i = code[pc++];
@@ -202,20 +217,33 @@ public final class LuaInterpreter {
 						stack[a] = upvalues[((i >>> POS_B) & MAXARG_B)].getValue();
 						break;
 
-					case OP_GETGLOBAL: // A Bx	R(A):= Gbl[Kst(Bx)]
-						stack[a] = OperationHelper.getTable(state, function.env, k[(i >>> POS_Bx) & MAXARG_Bx]);
+					case OP_GETGLOBAL: { // A Bx	R(A):= Gbl[Kst(Bx)]
+						LuaValue key = k[(i >>> POS_Bx) & MAXARG_Bx];
+						stack[a] = key instanceof LuaString
+							? getTable(state, function.env, (LuaString) key, cache, pc - 1, -1)
+							: OperationHelper.getTable(state, function.env, key);
 						break;
+					}
 
 					case OP_GETTABLE: { // A B C: R(A):= R(B)[RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						stack[a] = OperationHelper.getTable(state, stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						LuaValue key = c > 0xff ? k[c & 0x0ff] : stack[c];
+						stack[a] = key instanceof LuaString && c > 0xff
+							? getTable(state, stack[b], (LuaString) key, cache, pc - 1, b)
+							: OperationHelper.getTable(state, stack[b], key, b);
 						break;
 					}
 
-					case OP_SETGLOBAL: // A Bx: Gbl[Kst(Bx)]:= R(A)
-						OperationHelper.setTable(state, function.env, k[(i >>> POS_Bx) & MAXARG_Bx], stack[a]);
+					case OP_SETGLOBAL: { // A Bx: Gbl[Kst(Bx)]:= R(A)
+						LuaValue key = k[(i >>> POS_Bx) & MAXARG_Bx];
+						if (key instanceof LuaString) {
+							setTable(state, function.env, (LuaString) key, stack[a], cache, pc - 1, -1);
+						} else {
+							OperationHelper.setTable(state, function.env, key, stack[a]);
+						}
 						break;
+					}
 
 					case OP_SETUPVAL: // A B: UpValue[B]:= R(A)
 						upvalues[(i >>> POS_B) & MAXARG_B].setValue(stack[a]);
@@ -224,19 +252,33 @@ public final class LuaInterpreter {
 					case OP_SETTABLE: { // A B C: R(A)[RK(B)]:= RK(C)
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >>> POS_C) & MAXARG_C;
-						OperationHelper.setTable(state, stack[a], b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c], a);
+						LuaValue key = b > 0xff ? k[b & 0x0ff] : stack[b];
+						LuaValue value = c > 0xff ? k[c & 0x0ff] : stack[c];
+						if (key instanceof LuaString && b > 0xff) {
+							setTable(state, stack[a], (LuaString) key, value, cache, pc - 1, a);
+						} else {
+							OperationHelper.setTable(state, stack[a], key, value, a);
+						}
 						break;
 					}
 
-					case OP_NEWTABLE: // A B C: R(A):= {} (size = B,C)
-						stack[a] = new LuaTable((i >>> POS_B) & MAXARG_B, (i >>> POS_C) & MAXARG_C);
+					case OP_NEWTABLE: { // A B C: R(A):= {} (size = B,C)
+						int b = (i >>> POS_B) & MAXARG_B;
+						int c = (i >>> POS_C) & MAXARG_C;
+						LuaTable table = state.tableShapes ? p.newTable(state, pc - 1, b, c) : new LuaTable(b, c);
+						if (state.numberArrays) table.useNumberArray();
+						stack[a] = table;
 						break;
+					}
 
 					case OP_SELF: { // A B C: R(A+1):= R(B): R(A):= R(B)[RK(C)]
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						LuaValue o = stack[a + 1] = stack[b];
-						stack[a] = OperationHelper.getTable(state, o, c > 0xff ? k[c & 0x0ff] : stack[c], b);
+						LuaValue key = c > 0xff ? k[c & 0x0ff] : stack[c];
+						stack[a] = key instanceof LuaString && c > 0xff
+							? getTable(state, o, (LuaString) key, cache, pc - 1, b)
+							: OperationHelper.getTable(state, o, key, b);
 						break;
 					}
 
@@ -310,7 +352,7 @@ public final class LuaInterpreter {
 					}
 
 					case OP_JMP: // sBx: pc+=sBx
-						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+						pc = jump(state, di, pc, ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
 						break;
 
 					case OP_EQ: { // A B C: if ((RK(B) == RK(C)) ~= A) then pc++
@@ -318,9 +360,10 @@ public final class LuaInterpreter {
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.eq(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
 							// We assume the next instruction is a jump and read the branch from there.
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc = jump(state, di, pc + 1, ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -328,9 +371,10 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.lt(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc = jump(state, di, pc + 1, ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
@@ -338,17 +382,19 @@ public final class LuaInterpreter {
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = (i >> POS_C) & MAXARG_C;
 						if (OperationHelper.le(state, b > 0xff ? k[b & 0x0ff] : stack[b], c > 0xff ? k[c & 0x0ff] : stack[c]) == (a != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc = jump(state, di, pc + 1, ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
 					case OP_TEST: // A C: if not (R(A) <=> C) then pc++
 						if (stack[a].toBoolean() == (((i >> POS_C) & MAXARG_C) != 0)) {
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc = jump(state, di, pc + 1, ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 
 					case OP_TESTSET: { // A B C: if (R(B) <=> C) then R(A):= R(B) else pc++
@@ -358,13 +404,16 @@ public final class LuaInterpreter {
 						LuaValue val = stack[b];
 						if (val.toBoolean() == (c != 0)) {
 							stack[a] = val;
-							pc += ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+							pc = jump(state, di, pc + 1, ((code[pc] >> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+						} else {
+							pc++;
 						}
-						pc++;
 						break;
 					}
 
 					case OP_CALL: { // A B C: R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						if (state.consumeBudget()) preempt(state, di, pc - 1);
+
 						int b = (i >>> POS_B) & MAXARG_B;
 						int c = ((i >> POS_C) & MAXARG_C);
 
@@ -430,9 +479,9 @@ public final class LuaInterpreter {
 								break;
 							default: {
 								Varargs args = b > 0 ?
-									ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOf(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
-								Varargs v = OperationHelper.invoke(state, val, args.asImmutable(), a);
+									ValueFactory.varargsCopyOf(stack, a + 1, b - 1) : // exact arg count
+									ValueFactory.varargsCopyOf(stack, a + 1, di.top - di.extras.count() - (a + 1), di.extras); // from prev top
+								Varargs v = OperationHelper.invoke(state, val, args, a);
 								if (c > 0) {
 									while (--c > 0) stack[a + c - 1] = v.arg(c);
 									v = NONE;
@@ -447,6 +496,8 @@ public final class LuaInterpreter {
 					}
 
 					case OP_TAILCALL: { // A B C: return R(A)(R(A+1), ... ,R(A+B-1))
+						if (state.consumeBudget()) preempt(state, di, pc - 1);
+
 						int b = (i >>> POS_B) & MAXARG_B;
 
 						LuaValue val = stack[a];
@@ -460,9 +511,10 @@ public final class LuaInterpreter {
 								break;
 							default: {
 								Varargs v = di.extras;
+								// Copy the arguments, as our stack will be cleared when this frame is popped.
 								args = b > 0 ?
-									ValueFactory.varargsOf(stack, a + 1, b - 1) : // exact arg count
-									ValueFactory.varargsOf(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
+									ValueFactory.varargsCopyOf(stack, a + 1, b - 1) : // exact arg count
+									ValueFactory.varargsCopyOf(stack, a + 1, di.top - v.count() - (a + 1), v); // from prev top
 							}
 						}
 
@@ -470,7 +522,7 @@ public final class LuaInterpreter {
 						if (val.isFunction()) {
 							functionVal = (LuaFunction) val;
 						} else {
-							LuaValue meta = val.metatag(state, Constants.CALL);
+							LuaValue meta = val.metatag(state, CachedMetamethod.CALL);
 							if (!meta.isFunction()) throw ErrorFactory.operandError(state, val, "call", a);
 
 							functionVal = (LuaFunction) meta;
@@ -488,7 +540,7 @@ public final class LuaInterpreter {
 
 							continue newFrame;
 						} else {
-							Varargs v = functionVal.invoke(state, args.asImmutable());
+							Varargs v = functionVal.invoke(state, args);
 							di.top = a + v.count();
 							di.extras = v;
 							break;
@@ -498,15 +550,36 @@ public final class LuaInterpreter {
 					case OP_RETURN: { // A B: return R(A), ... ,R(A+B-2) (see note)
 						int b = (i >>> POS_B) & MAXARG_B;
 
-						int flags = di.flags, top = di.top;
-						Varargs v = di.extras;
-						closeAll(openups);
-						handler.onReturn(ds, di);
+						int flags = di.flags;
+
+						// If returning a fixed number of values to a Lua function, copy them straight into the caller's
+						// registers. We cannot do this when there is a return hook, as it may observe the caller.
+						if ((flags & FLAG_FRESH) == 0 && b != 0 && !customHandler && !ds.hookrtrn) {
+							DebugFrame caller = di.previous;
+							int callInsn = ((LuaInterpretedFunction) caller.closure).p.code[caller.pc];
+							int c = (callInsn >>> POS_C) & MAXARG_C;
+							if (((callInsn >> POS_OP) & MAX_OP) == OP_CALL && c > 0) {
+								LuaValue[] callerStack = caller.stack;
+								int callerA = (callInsn >> POS_A) & MAXARG_A;
+								for (int j = 0, n = b - 1; j < c - 1; j++) {
+									callerStack[callerA + j] = j < n ? stack[a + j] : NIL;
+								}
+
+								closeAll(openups);
+								ds.popInfo();
+
+								di = caller;
+								di.extras = NONE;
+								di.pc++;
+								function = (LuaInterpretedFunction) di.closure;
+								continue newFrame;
+							}
+						}
 
 						Varargs ret;
 						switch (b) {
 							case 0:
-								ret = ValueFactory.varargsOf(stack, a, top - v.count() - a, v).asImmutable();
+								ret = ValueFactory.varargsCopyOf(stack, a, di.top - di.extras.count() - a, di.extras);
 								break;
 							case 1:
 								ret = NONE;
@@ -515,10 +588,14 @@ public final class LuaInterpreter {
 								ret = stack[a];
 								break;
 							default:
-								ret = ValueFactory.varargsOf(stack, a, b - 1).asImmutable();
+								ret = ValueFactory.varargsCopyOf(stack, a, b - 1);
 								break;
 						}
 
+						// Compute the return values before calling the hook, as popping the frame will clear the stack.
+						closeAll(openups);
+						handler.onReturn(ds, di);
+
 						if ((flags & FLAG_FRESH) != 0) {
 							// If we're a fresh invocation then return to the parent.
 							return ret;
@@ -531,13 +608,24 @@ public final class LuaInterpreter {
 					}
 
 					case OP_FORLOOP: { // A sBx: R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
-						double limit = stack[a + 1].checkDouble();
-						double step = stack[a + 2].checkDouble();
-						double value = stack[a].checkDouble();
-						double idx = step + value;
-						if (0 < step ? idx <= limit : limit <= idx) {
-							stack[a + 3] = stack[a] = valueOf(idx);
-							pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
+						LuaValue value = stack[a], limit = stack[a + 1], step = stack[a + 2];
+						if (value instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							// Integer loop: compute the next index as a long, so it cannot overflow before being
+							// compared against the limit.
+							int iStep = ((LuaInteger) step).v, iLimit = ((LuaInteger) limit).v;
+							long idx = (long) ((LuaInteger) value).v + iStep;
+							if (0 < iStep ? idx <= iLimit : iLimit <= idx) {
+								stack[a + 3] = stack[a] = LuaInteger.valueOf((int) idx);
+								pc = jump(state, di, pc, ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+							}
+						} else {
+							double dLimit = limit.checkDouble();
+							double dStep = step.checkDouble();
+							double idx = dStep + value.checkDouble();
+							if (0 < dStep ? idx <= dLimit : dLimit <= idx) {
+								stack[a + 3] = stack[a] = valueOf(idx);
+								pc = jump(state, di, pc, ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx);
+							}
 						}
 					}
 					break;
@@ -546,7 +634,12 @@ public final class LuaInterpreter {
 						LuaNumber init = stack[a].checkNumber("'for' initial value must be a number");
 						LuaNumber limit = stack[a + 1].checkNumber("'for' limit must be a number");
 						LuaNumber step = stack[a + 2].checkNumber("'for' step must be a number");
-						stack[a] = valueOf(init.toDouble() - step.toDouble());
+						if (init instanceof LuaInteger && limit instanceof LuaInteger && step instanceof LuaInteger) {
+							// Keep the index as an integer, allowing OP_FORLOOP to use its integer path.
+							stack[a] = LuaInteger.valueOf((long) ((LuaInteger) init).v - ((LuaInteger) step).v);
+						} else {
+							stack[a] = valueOf(init.toDouble() - step.toDouble());
+						}
 						stack[a + 1] = limit;
 						stack[a + 2] = step;
 						pc += ((i >>> POS_Bx) & MAXARG_Bx) - MAXARG_sBx;
@@ -559,15 +652,27 @@ public final class LuaInterpreter {
 								R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
 								else pc++
 							*/
+						if (state.consumeBudget()) preempt(state, di, pc - 1);
+
+						int c = (i >> POS_C) & MAXARG_C;
+						if (c == 1) {
+							// Only one loop variable, so we can avoid allocating varargs for the arguments and results.
+							LuaValue val = OperationHelper.call(state, stack[a], stack[a + 1], stack[a + 2], a);
+							if (val.isNil()) {
+								pc++;
+							} else {
+								stack[a + 2] = stack[a + 3] = val;
+							}
+							break;
+						}
+
 						Varargs v = di.extras = OperationHelper.invoke(state, stack[a], ValueFactory.varargsOf(stack[a + 1], stack[a + 2]), a);
 						LuaValue val = v.first();
 						if (val.isNil()) {
 							pc++;
 						} else {
 							stack[a + 2] = stack[a + 3] = val;
-							for (int c = (i >> POS_C) & MAXARG_C; c > 1; --c) {
-								stack[a + 2 + c] = v.arg(c);
-							}
+							for (; c > 1; --c) stack[a + 2 + c] = v.arg(c);
 							di.extras = NONE;
 						}
 						break;
@@ -612,6 +717,11 @@ public final class LuaInterpreter {
 
 					case OP_CLOSURE: { // A Bx: R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))
 						Prototype newp = p.p[(i >>> POS_Bx) & MAXARG_Bx];
+						if (newp.nups == 0 && state.shareClosures) {
+							stack[a] = newp.getSharedClosure(function.env);
+							break;
+						}
+
 						LuaInterpretedFunction newcl = new LuaInterpretedFunction(newp, function.env);
 						for (int j = 0, nup = newp.nups; j < nup; ++j) {
 							i = code[pc++];
@@ -690,9 +800,149 @@ public final class LuaInterpreter {
 		}
 	}
 
+	/**
+	 * A version of {@link OperationHelper#getTable(LuaState, LuaValue, LuaValue, int)} for constant string keys, which
+	 * remembers the slot the key was last found in.
+	 *
+	 * @param state The current lua state
+	 * @param t     The value being indexed
+	 * @param key   The constant key to look up
+	 * @param cache The prototype's slot cache
+	 * @param pc    The current instruction, used as an index into {@code cache}
+	 * @param stack Stack index of {@code t}
+	 * @return The value for this key
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __index} metamethod yielded.
+	 * @see Prototype#getSlotCache()
+	 */
+	private static LuaValue getTable(LuaState state, LuaValue t, LuaString key, int[] cache, int pc, int stack) throws LuaError, UnwindThrowable {
+		LuaValue tm;
+		int loop = 0;
+		do {
+			if (t instanceof LuaTable) {
+				LuaTable table = (LuaTable) t;
+				LuaValue res = table.rawgetSlot(cache[pc], key);
+				if (res == null) {
+					int slot = table.findSlot(key);
+					if (slot >= 0) {
+						cache[pc] = slot;
+						res = table.rawgetSlot(slot, key);
+					} else {
+						res = NIL;
+					}
+				}
+
+				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+					return res;
+				}
+			} else if ((tm = t.metatag(state, CachedMetamethod.INDEX)).isNil()) {
+				throw ErrorFactory.operandError(state, t, "index", stack);
+			}
+			if (tm.isFunction()) {
+				return ((LuaFunction) tm).call(state, t, key);
+			}
+			t = tm;
+			stack = -1;
+		}
+		while (++loop < MAXTAGLOOP);
+		throw new LuaError("loop in gettable");
+	}
+
+	/**
+	 * A version of {@link OperationHelper#setTable(LuaState, LuaValue, LuaValue, LuaValue, int)} for constant string
+	 * keys, which remembers the slot the key was last found in.
+	 *
+	 * @param state The current lua state
+	 * @param t     The value being indexed
+	 * @param key   The constant key to assign
+	 * @param value The value to assign
+	 * @param cache The prototype's slot cache
+	 * @param pc    The current instruction, used as an index into {@code cache}
+	 * @param stack Stack index of {@code t}
+	 * @throws LuaError        If there is a loop in metatag processing
+	 * @throws UnwindThrowable If the {@code __newindex} metamethod yielded.
+	 * @see Prototype#getSlotCache()
+	 */
+	private static void setTable(LuaState state, LuaValue t, LuaString key, LuaValue value, int[] cache, int pc, int stack) throws LuaError, UnwindThrowable {
+		LuaValue tm;
+		int loop = 0;
+		do {
+			if (t instanceof LuaTable) {
+				LuaTable table = (LuaTable) t;
+				int slot = cache[pc];
+				LuaValue res = table.rawgetSlot(slot, key);
+				if (res == null) {
+					slot = table.findSlot(key);
+					if (slot >= 0) {
+						cache[pc] = slot;
+						res = table.rawgetSlot(slot, key);
+					} else {
+						res = NIL;
+					}
+				}
+
+				if (!res.isNil() || (tm = t.metatag(state, CachedMetamethod.NEWINDEX)).isNil()) {
+					if (!table.rawsetSlot(slot, key, value)) table.rawset(key, value);
+					return;
+				}
+			} else if ((tm = t.metatag(state, CachedMetamethod.NEWINDEX)).isNil()) {
+				throw ErrorFactory.operandError(state, t, "index", stack);
+			}
+			if (tm.isFunction()) {
+				((LuaFunction) tm).call(state, t, key, value);
+				return;
+			}
+			t = tm;
+			stack = -1;
+		}
+		while (++loop < MAXTAGLOOP);
+		throw new LuaError("loop in settable");
+	}
+
+	/**
+	 * Perform a relative jump, consuming the state's execution budget if this is a backwards jump.
+	 *
+	 * @param state  The current Lua state
+	 * @param di     The current frame
+	 * @param pc     The current program counter
+	 * @param offset The offset to jump by
+	 * @return The new program counter
+	 * @throws LuaError        If the budget is exhausted.
+	 * @throws UnwindThrowable If the budget is exhausted and the current thread is suspended.
+	 */
+	private static int jump(LuaState state, DebugFrame di, int pc, int offset) throws LuaError, UnwindThrowable {
+		pc += offset;
+		if (offset < 0 && state.consumeBudget()) preempt(state, di, pc);
+		return pc;
+	}
+
+	/**
+	 * Suspend the current thread due to the budget being exhausted, marking the frame so it is resumed at {@code pc}.
+	 *
+	 * @param state The current Lua state
+	 * @param di    The current frame
+	 * @param pc    The instruction to resume at. This instruction must not have had any side effects yet.
+	 * @throws LuaError        If the thread cannot be suspended.
+	 * @throws UnwindThrowable To suspend the thread.
+	 */
+	private static void preempt(LuaState state, DebugFrame di, int pc) throws LuaError, UnwindThrowable {
+		di.pc = pc;
+		di.flags |= FLAG_PREEMPTED;
+		LuaThread.suspend(state);
+
+		// We suspended by blocking, so continue as normal.
+		di.flags &= ~FLAG_PREEMPTED;
+	}
+
 	public static void closeAll(Upvalue[] upvalues) {
 		if (upvalues == null) return;
-		for (Upvalue upvalue : upvalues) if (upvalue != null) upvalue.close();
+		for (int i = 0; i < upvalues.length; i++) {
+			Upvalue upvalue = upvalues[i];
+			if (upvalue != null) {
+				upvalue.close();
+				upvalues[i] = null;
+			}
+		}
 	}
 
 	public static void resume(LuaState state, DebugFrame di, LuaInterpretedFunction function, Varargs varargs) throws LuaError, UnwindThrowable {
@@ -794,7 +1044,7 @@ public final class LuaInterpreter {
 				Varargs ret;
 				switch (b) {
 					case 0:
-						ret = ValueFactory.varargsOf(di.stack, a, di.top - di.extras.count() - a, di.extras).asImmutable();
+						ret = ValueFactory.varargsCopyOf(di.stack, a, di.top - di.extras.count() - a, di.extras);
 						break;
 					case 1:
 						ret = NONE;
@@ -803,7 +1053,7 @@ public final class LuaInterpreter {
 						ret = di.stack[a];
 						break;
 					default:
-						ret = ValueFactory.varargsOf(di.stack, a, b - 1).asImmutable();
+						ret = ValueFactory.varargsCopyOf(di.stack, a, b - 1);
 						break;
 				}
 
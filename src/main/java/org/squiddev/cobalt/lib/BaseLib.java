@@ -201,7 +201,7 @@ public class BaseLib implements LuaLibrary {
 				case 3: // "getmetatable", // ( object ) -> table
 				{
 					LuaTable mt = args.checkValue(1).getMetatable(state);
-					return mt != null ? mt.rawget(Constants.METATABLE).optValue(mt) : Constants.NIL;
+					return mt != null ? mt.rawget(CachedMetamethod.METATABLE).optValue(mt) : Constants.NIL;
 				}
 				case 4: // "loadfile", // ( [filename] ) -> chunk | nil, msg
 				{
@@ -260,7 +260,7 @@ public class BaseLib implements LuaLibrary {
 				case 9: // "type",  // (v) -> value
 					return valueOf(args.checkValue(1).typeName());
 				case 10: // "rawequal", // (v1, v2) -> boolean
-					return valueOf(args.checkValue(1) == args.checkValue(2));
+					return valueOf(args.checkValue(1).raweq(args.checkValue(2)));
 				case 11: // "rawget", // (table, index) -> value
 					return args.arg(1).checkTable().rawget(args.checkValue(2));
 				case 12: { // "rawset", // (table, index, value) -> table
@@ -274,7 +274,7 @@ public class BaseLib implements LuaLibrary {
 				case 13: { // "setmetatable", // (table, metatable) -> table
 					final LuaValue t = args.first();
 					final LuaTable mt0 = t.getMetatable(state);
-					if (mt0 != null && !mt0.rawget(Constants.METATABLE).isNil()) {
+					if (mt0 != null && !mt0.rawget(CachedMetamethod.METATABLE).isNil()) {
 						throw new LuaError("cannot change a protected metatable");
 					}
 					final LuaValue mt = args.checkValue(2);
@@ -297,7 +297,7 @@ public class BaseLib implements LuaLibrary {
 				}
 				case 16: { // "pairs" (t) -> iter-func, t, nil
 					LuaValue value = args.checkValue(1);
-					LuaValue pairs = value.metatag(state, Constants.PAIRS);
+					LuaValue pairs = value.metatag(state, CachedMetamethod.PAIRS);
 					if(pairs.isNil()) {
 						return varargsOf(baselib.next, value, Constants.NIL);
 					} else {
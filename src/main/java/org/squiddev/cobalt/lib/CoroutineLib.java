@@ -72,13 +72,27 @@ public class CoroutineLib extends ResumableVarArgFunction<Object> implements Lua
 
 	@Override
 	public LuaValue add(LuaState state, LuaTable env) {
-		LuaTable t = new LuaTable();
-		bind(t, CoroutineLib::new, new String[]{"create", "resume", "running", "status", "yield", "wrap"});
+		LuaTable t = state.sharedLibraries ? Shared.TABLE : create();
 		env.rawset("coroutine", t);
 		state.loadedPackages.rawset("coroutine", t);
 		return t;
 	}
 
+	private static LuaTable create() {
+		LuaTable t = new LuaTable();
+		bind(t, CoroutineLib::new, new String[]{"create", "resume", "running", "status", "yield", "wrap"});
+		return t;
+	}
+
+	/**
+	 * The library table shared between states, created on first use.
+	 *
+	 * @see LuaState#sharedLibraries
+	 */
+	private static final class Shared {
+		static final LuaTable TABLE = create().freeze();
+	}
+
 	@Override
 	public Varargs invoke(LuaState state, DebugFrame di, Varargs args) throws LuaError, UnwindThrowable {
 		switch (opcode) {
@@ -29,6 +29,8 @@ import org.squiddev.cobalt.LuaError;
 import org.squiddev.cobalt.LuaString;
 import sun.misc.FormattedFloatingDecimal;
 
+import java.util.Arrays;
+
 public class FormatDesc {
 	private boolean leftAdjust;
 	private boolean zeroPad;
@@ -45,6 +47,29 @@ public class FormatDesc {
 
 	private static boolean useOracleFormatting = true;
 
+	/**
+	 * The largest power of ten used by {@link #formatFast(Buffer, double, int)}. All powers up to this can be
+	 * represented exactly as a double.
+	 */
+	private static final int MAX_SCALE = 22;
+
+	/**
+	 * The maximum number of digits in a long less than {@link #MAX_EXACT}.
+	 */
+	private static final int MAX_DIGITS = 16;
+
+	/**
+	 * The first integer which cannot be exactly represented as a double.
+	 */
+	private static final double MAX_EXACT = 0x1p53;
+
+	private static final double[] POWERS_OF_TEN = new double[MAX_SCALE + 1];
+
+	static {
+		double power = 1;
+		for (int i = 0; i <= MAX_SCALE; i++, power *= 10) POWERS_OF_TEN[i] = power;
+	}
+
 	FormatDesc(LuaString strfrmt, final int start) throws LuaError {
 		int p = start, n = strfrmt.length();
 		int c = 0;
@@ -239,6 +264,8 @@ public class FormatDesc {
 			buf.append(Character.isUpperCase(conversion) ? "INF" : "inf");
 			if (leftAdjust) pad(buf, ' ', effectiveWidth - 3);
 		} else {
+			if (formatFast(buf, number, effectiveWidth)) return;
+
 			if (useOracleFormatting) {
 				try {
 					formatWithOracle(buf, number, effectiveWidth);
@@ -275,9 +302,8 @@ public class FormatDesc {
 	 * @param effectiveWidth The width remaining after emitting the sign
 	 */
 	private void formatWithOracle(Buffer buf, double number, int effectiveWidth) {
-		char[] mantissa, exp;
-		int expRounded;
-		StringBuilder mantissaBuilder;
+		byte[] mantissa, exp;
+		int length;
 
 		int precision = this.precision;
 		if (this.precision == -1) precision = 6;
@@ -285,47 +311,67 @@ public class FormatDesc {
 		if (conversion == 'g' || conversion == 'G') {
 			if (precision == 0) precision = 1;
 
+			int expRounded;
 			if (number == 0) {
-				mantissa = new char[]{'0'};
+				mantissa = new byte[precision + 2];
+				mantissa[0] = '0';
+				length = 1;
 				exp = null;
 				expRounded = 0;
 			} else {
 				FormattedFloatingDecimal fd = FormattedFloatingDecimal.valueOf(Math.abs(number), precision, FormattedFloatingDecimal.Form.GENERAL);
-				mantissa = fd.getMantissa();
-				exp = fd.getExponent();
+				char[] digits = fd.getMantissa();
+				mantissa = toBytes(digits, precision + 2);
+				length = digits.length;
+				exp = fd.getExponent() == null ? null : toBytes(fd.getExponent(), 0);
 				expRounded = fd.getExponentRounded();
 			}
 
-			mantissaBuilder = new StringBuilder(mantissa.length);
-			mantissaBuilder.append(mantissa);
-			stripZeros(mantissaBuilder);
+			length = stripZeros(mantissa, length);
 			if (alternateForm) {
 				precision -= exp != null ? 1 : expRounded + 1;
-				addZeros(mantissaBuilder, precision);
+				length = addZeros(mantissa, length, precision);
 			}
 		} else if (conversion == 'e' || conversion == 'E') {
 			FormattedFloatingDecimal fd = FormattedFloatingDecimal.valueOf(Math.abs(number), precision, FormattedFloatingDecimal.Form.SCIENTIFIC);
-			mantissa = fd.getMantissa();
-			exp = number == 0 ? new char[]{'+', '0', '0'} : fd.getExponent();
-
-			mantissaBuilder = new StringBuilder(mantissa.length);
-			mantissaBuilder.append(mantissa);
-			addZeros(mantissaBuilder, precision);
+			char[] digits = fd.getMantissa();
+			mantissa = toBytes(digits, precision + 2);
+			length = addZeros(mantissa, digits.length, precision);
+			exp = number == 0 ? new byte[]{ '+', '0', '0' } : toBytes(fd.getExponent(), 0);
 		} else if (conversion == 'f') {
 			FormattedFloatingDecimal fd = FormattedFloatingDecimal.valueOf(Math.abs(number), precision, FormattedFloatingDecimal.Form.DECIMAL_FLOAT);
-			mantissa = fd.getMantissa();
+			char[] digits = fd.getMantissa();
+			mantissa = toBytes(digits, precision + 2);
+			length = addZeros(mantissa, digits.length, precision);
 			exp = null;
-
-			mantissaBuilder = new StringBuilder(mantissa.length);
-			mantissaBuilder.append(mantissa);
-			addZeros(mantissaBuilder, precision);
 		} else {
 			throw new IllegalStateException("Unknown converter " + conversion);
 		}
 
+		append(buf, number, effectiveWidth, precision, mantissa, length, exp);
+	}
+
+	private static byte[] toBytes(char[] chars, int extra) {
+		byte[] out = new byte[chars.length + extra];
+		for (int i = 0; i < chars.length; i++) out[i] = (byte) chars[i];
+		return out;
+	}
+
+	/**
+	 * Write a formatted number, padding it to the required width.
+	 *
+	 * @param buf            The buffer to write to
+	 * @param number         The number being written, used to determine its sign
+	 * @param effectiveWidth The width remaining after emitting the sign
+	 * @param precision      The precision the mantissa was formatted with
+	 * @param mantissa       The formatted mantissa
+	 * @param length         The length of the mantissa
+	 * @param exponent       The formatted exponent, or {@code null} if there is none
+	 */
+	private void append(Buffer buf, double number, int effectiveWidth, int precision, byte[] mantissa, int length, byte[] exponent) {
 		// Calculate the effective width
-		effectiveWidth -= mantissaBuilder.length();
-		if (exp != null) effectiveWidth -= 1 + exp.length;
+		effectiveWidth -= length;
+		if (exponent != null) effectiveWidth -= 1 + exponent.length;
 		if (alternateForm && precision == 0) effectiveWidth--;
 
 		// Spaces must occur before the sign but 0s afterwards
@@ -334,19 +380,221 @@ public class FormatDesc {
 		if (zeroPad && !leftAdjust) pad(buf, '0', effectiveWidth);
 
 		// Append required parts of the mantissa.
-		buf.append(mantissaBuilder.toString());
+		buf.append(mantissa, 0, length);
 
 		// If the precision is zero and the '#' flag is set, add the requested decimal point.
 		if (alternateForm && precision == 0) buf.append('.');
 
-		if (exp != null) {
+		if (exponent != null) {
 			buf.append(conversion <= 'Z' ? 'E' : 'e');
-			buf.append(exp);
+			buf.append(exponent);
 		}
 
 		if (leftAdjust) pad(buf, ' ', effectiveWidth);
 	}
 
+	/**
+	 * Format a number without going through Java's formatting, writing directly into the buffer.
+	 *
+	 * This finds the shortest decimal which round-trips to this number using exact integer arithmetic, and then
+	 * rounds and lays it out in the same way as {@link #formatWithOracle(Buffer, double, int)}. This only works for
+	 * numbers whose shortest decimal has at most {@link #MAX_SCALE} fractional digits and fits within a long.
+	 *
+	 * @param buf            The buffer to write to
+	 * @param number         The number to write
+	 * @param effectiveWidth The width remaining after emitting the sign
+	 * @return Whether the number could be formatted.
+	 */
+	private boolean formatFast(Buffer buf, double number, int effectiveWidth) {
+		double value = Math.abs(number);
+		if (value == 0 || value >= MAX_EXACT) return false;
+
+		// Find the smallest scale at which the number is a whole number of units.
+		long whole = -1;
+		int scale;
+		for (scale = 0; scale <= MAX_SCALE; scale++) {
+			double scaled = value * POWERS_OF_TEN[scale];
+			if (scaled >= MAX_EXACT) return false;
+
+			double rounded = Math.rint(scaled);
+			if (rounded / POWERS_OF_TEN[scale] == value) {
+				whole = (long) rounded;
+				break;
+			}
+		}
+		if (whole <= 0) return false;
+
+		while (whole % 10 == 0) {
+			whole /= 10;
+			scale--;
+		}
+
+		// Extract the digits, such that the value is 0.digits * 10^exponent.
+		byte[] digits = new byte[MAX_DIGITS];
+		int nDigits = 0;
+		for (long remaining = whole; remaining > 0; remaining /= 10) digits[nDigits++] = (byte) ('0' + remaining % 10);
+		for (int i = 0, j = nDigits - 1; i < j; i++, j--) {
+			byte tmp = digits[i];
+			digits[i] = digits[j];
+			digits[j] = tmp;
+		}
+		int decExp = nDigits - scale;
+
+		int precision = this.precision;
+		if (precision == -1) precision = 6;
+
+		byte[] mantissa = new byte[precision + MAX_DIGITS + 8];
+		byte[] exponent = null;
+		int length;
+		if (conversion == 'g' || conversion == 'G') {
+			if (precision == 0) precision = 1;
+
+			int exp = applyPrecision(decExp, digits, nDigits, precision);
+			if (exp - 1 < -4 || exp - 1 >= precision) {
+				length = fillScientific(mantissa, precision - 1, digits, nDigits);
+				exponent = exponent(exp);
+			} else {
+				length = fillDecimal(mantissa, precision - exp, digits, nDigits, exp);
+			}
+
+			length = stripZeros(mantissa, length);
+			if (alternateForm) {
+				precision -= exponent != null ? 1 : exp;
+				length = addZeros(mantissa, length, precision);
+			}
+		} else if (conversion == 'e' || conversion == 'E') {
+			int exp = applyPrecision(decExp, digits, nDigits, precision + 1);
+			length = addZeros(mantissa, fillScientific(mantissa, precision, digits, nDigits), precision);
+			exponent = exponent(exp);
+		} else if (conversion == 'f') {
+			int exp = applyPrecision(decExp, digits, nDigits, decExp + precision);
+			length = addZeros(mantissa, fillDecimal(mantissa, precision, digits, nDigits, exp), precision);
+		} else {
+			return false;
+		}
+
+		append(buf, number, effectiveWidth, precision, mantissa, length, exponent);
+		return true;
+	}
+
+	/**
+	 * Round a list of digits to a given number of significant digits, replacing the remaining ones with zeros.
+	 *
+	 * @return The new decimal exponent, which is one larger if the digits carried over.
+	 */
+	private static int applyPrecision(int decExp, byte[] digits, int nDigits, int prec) {
+		if (prec >= nDigits || prec < 0) return decExp;
+
+		if (prec == 0) {
+			if (digits[0] >= '5') {
+				digits[0] = '1';
+				Arrays.fill(digits, 1, nDigits, (byte) '0');
+				return decExp + 1;
+			} else {
+				Arrays.fill(digits, 0, nDigits, (byte) '0');
+				return decExp;
+			}
+		}
+
+		if (digits[prec] >= '5') {
+			int i = prec - 1;
+			while (i > 0 && digits[i] == '9') i--;
+			if (digits[i] == '9') {
+				digits[0] = '1';
+				Arrays.fill(digits, 1, nDigits, (byte) '0');
+				return decExp + 1;
+			}
+
+			digits[i]++;
+			Arrays.fill(digits, i + 1, nDigits, (byte) '0');
+		} else {
+			Arrays.fill(digits, prec, nDigits, (byte) '0');
+		}
+		return decExp;
+	}
+
+	private static int fillDecimal(byte[] out, int precision, byte[] digits, int nDigits, int exp) {
+		if (exp > 0) {
+			if (nDigits < exp) {
+				System.arraycopy(digits, 0, out, 0, nDigits);
+				Arrays.fill(out, nDigits, exp, (byte) '0');
+				return exp;
+			}
+
+			int fraction = Math.min(nDigits - exp, precision);
+			System.arraycopy(digits, 0, out, 0, exp);
+			if (fraction <= 0) return exp;
+
+			out[exp] = '.';
+			System.arraycopy(digits, exp, out, exp + 1, fraction);
+			return exp + 1 + fraction;
+		}
+
+		int zeros = Math.max(0, Math.min(-exp, precision));
+		int significant = Math.max(0, Math.min(nDigits, precision + exp));
+		if (zeros == 0 && significant == 0) {
+			out[0] = '0';
+			return 1;
+		}
+
+		out[0] = '0';
+		out[1] = '.';
+		Arrays.fill(out, 2, 2 + zeros, (byte) '0');
+		System.arraycopy(digits, 0, out, 2 + zeros, significant);
+		return 2 + zeros + significant;
+	}
+
+	private static int fillScientific(byte[] out, int precision, byte[] digits, int nDigits) {
+		int fraction = Math.max(0, Math.min(nDigits - 1, precision));
+		out[0] = digits[0];
+		if (fraction == 0) return 1;
+
+		out[1] = '.';
+		System.arraycopy(digits, 1, out, 2, fraction);
+		return 2 + fraction;
+	}
+
+	private static byte[] exponent(int exp) {
+		byte sign;
+		int e;
+		if (exp <= 0) {
+			sign = '-';
+			e = -exp + 1;
+		} else {
+			sign = '+';
+			e = exp - 1;
+		}
+
+		return e <= 99
+			? new byte[]{ sign, (byte) ('0' + e / 10), (byte) ('0' + e % 10) }
+			: new byte[]{ sign, (byte) ('0' + e / 100), (byte) ('0' + e / 10 % 10), (byte) ('0' + e % 10) };
+	}
+
+	private static int addZeros(byte[] out, int length, int prec) {
+		int dot = 0;
+		while (dot < length && out[dot] != '.') dot++;
+		boolean needDot = dot == length;
+
+		int outPrec = length - dot - (needDot ? 0 : 1);
+		if (outPrec >= prec) return length;
+
+		if (needDot) out[length++] = '.';
+		Arrays.fill(out, length, length + prec - outPrec, (byte) '0');
+		return length + prec - outPrec;
+	}
+
+	private static int stripZeros(byte[] out, int length) {
+		if (out[length - 1] != '0') return length;
+
+		int dot = length - 1;
+		while (dot >= 0 && out[dot] != '.') dot--;
+		if (dot < 0) return length;
+
+		while (out[length - 1] == '0') length--;
+		if (out[length - 1] == '.') length--;
+		return length;
+	}
+
 	public void format(Buffer buf, LuaString s) {
 		int nullindex = s.indexOf((byte) '\0', 0);
 		if (nullindex != -1) {
@@ -379,38 +627,4 @@ public class FormatDesc {
 		byte b = (byte) c;
 		while (n-- > 0) buf.append(b);
 	}
-
-	private static void addZeros(StringBuilder v, int prec) {
-		// Look for the dot.  If we don't find one, the we'll need to add
-		// it before we add the zeros.
-		int i;
-		for (i = 0; i < v.length(); i++) {
-			if (v.charAt(i) == '.') break;
-		}
-		boolean needDot = i == v.length();
-
-		// Determine existing precision.
-		int outPrec = v.length() - i - (needDot ? 0 : 1);
-		assert (outPrec <= prec);
-		if (outPrec == prec) return;
-
-		// Add dot if previously determined to be necessary.
-		if (needDot) v.append('.');
-
-		// Add zeros.
-		for (int j = 0; j < prec - outPrec; j++) v.append('0');
-	}
-
-	private static void stripZeros(StringBuilder v) {
-		// If we don't end with a zero then skip.
-		if (v.charAt(v.length() - 1) != '0') return;
-
-		// Ensure we've a dot
-		if (v.lastIndexOf(".") == -1) return;
-
-		int length = v.length();
-		while (v.charAt(length - 1) == '0') length--;
-		if (v.charAt(length - 1) == '.') length--;
-		v.setLength(length);
-	}
 }
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.squiddev.cobalt.lib.StringLib.L_ESC;
+
+/**
+ * A format string for {@code string.format}, split into literal text and {@link FormatDesc}s.
+ *
+ * Format strings which would raise an error (such as {@code "%y"}) are not compiled, and are instead handled by
+ * {@link StringFormat#format(LuaState, StringFormat.FormatState)} as before, so errors are reported in the same order.
+ *
+ * @see LuaState#formatCache
+ */
+public final class FormatProgram {
+	/**
+	 * The maximum number of compiled format strings kept by each {@link LuaState}.
+	 */
+	public static final int CACHE_SIZE = 64;
+
+	private static final FormatProgram UNSUPPORTED = new FormatProgram(null, null);
+
+	/**
+	 * The literal text before each specifier, followed by the text after the last one.
+	 */
+	final byte[][] text;
+
+	final FormatDesc[] specifiers;
+
+	private FormatProgram(byte[][] text, FormatDesc[] specifiers) {
+		this.text = text;
+		this.specifiers = specifiers;
+	}
+
+	/**
+	 * Get the compiled form of a format string, compiling it if it is not already in the state's cache.
+	 *
+	 * @param state  The current Lua state.
+	 * @param format The format string to compile.
+	 * @return The compiled format string, or {@code null} if it could not be compiled.
+	 */
+	static FormatProgram get(LuaState state, LuaString format) {
+		Map<LuaString, FormatProgram> cache = state.formatCache;
+		FormatProgram compiled = cache.get(format);
+		if (compiled == null) {
+			compiled = compile(format);
+
+			// Avoid retaining a larger string which this format is a substring of.
+			LuaString key = format.bytes.length == format.length ? format
+				: LuaString.valueOf(Arrays.copyOfRange(format.bytes, format.offset, format.offset + format.length));
+			cache.put(key, compiled);
+		}
+
+		return compiled == UNSUPPORTED ? null : compiled;
+	}
+
+	private static FormatProgram compile(LuaString format) {
+		List<byte[]> text = new ArrayList<>();
+		List<FormatDesc> specifiers = new ArrayList<>();
+
+		byte[] current = new byte[format.length];
+		int currentLength = 0;
+		for (int i = 0, n = format.length; i < n; ) {
+			int c = format.luaByte(i++);
+			if (c != L_ESC) {
+				current[currentLength++] = (byte) c;
+				continue;
+			}
+
+			if (i >= n) return UNSUPPORTED;
+
+			if (format.luaByte(i) == L_ESC) {
+				i++;
+				current[currentLength++] = (byte) L_ESC;
+				continue;
+			}
+
+			FormatDesc desc;
+			try {
+				desc = new FormatDesc(format, i);
+			} catch (LuaError e) {
+				return UNSUPPORTED;
+			}
+			i += desc.length;
+
+			switch (desc.conversion) {
+				case 'c': case 'i': case 'd': case 'o': case 'u': case 'x': case 'X':
+				case 'e': case 'E': case 'f': case 'g': case 'G':
+				case 'q': case 's':
+					break;
+				default:
+					return UNSUPPORTED;
+			}
+
+			text.add(Arrays.copyOf(current, currentLength));
+			specifiers.add(desc);
+			currentLength = 0;
+		}
+		text.add(Arrays.copyOf(current, currentLength));
+
+		return new FormatProgram(text.toArray(new byte[0][]), specifiers.toArray(new FormatDesc[0]));
+	}
+}
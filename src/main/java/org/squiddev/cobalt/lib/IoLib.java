@@ -32,6 +32,7 @@ import org.squiddev.cobalt.lib.jse.JseIoLib;
 import org.squiddev.cobalt.lib.jse.JsePlatform;
 
 import java.io.*;
+import java.util.Iterator;
 
 import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -484,7 +485,13 @@ public abstract class IoLib implements LuaLibrary {
 
 	private static Varargs iowrite(File f, Varargs args) throws IOException, LuaError {
 		for (int i = 1, n = args.count(); i <= n; i++) {
-			f.write(args.arg(i).checkLuaString());
+			LuaBaseString string = args.arg(i).checkLuaBaseString();
+			if (string instanceof LuaRope) {
+				// Write each piece in turn, rather than flattening the rope.
+				for (Iterator<LuaString> pieces = ((LuaRope) string).pieces(); pieces.hasNext(); ) f.write(pieces.next());
+			} else {
+				f.write((LuaString) string);
+			}
 		}
 		return TRUE;
 	}
@@ -0,0 +1,457 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaState;
+import org.squiddev.cobalt.LuaString;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.squiddev.cobalt.Constants.EMPTYSTRING;
+import static org.squiddev.cobalt.lib.StringLib.L_ESC;
+
+/**
+ * A Lua pattern compiled into a list of items, as used by the string library.
+ *
+ * Each item is a single character class (stored as a 256-bit set) with an optional quantifier, or one of the
+ * special items (captures, back references, {@code %b}, {@code %f} and a trailing {@code $}). This avoids
+ * re-parsing the pattern at every position of the subject.
+ *
+ * Patterns which would raise an error (such as {@code "(%"}) are not compiled, and are instead run through the
+ * original interpreter in {@link StringMatch.MatchState}, so errors are reported at exactly the same point.
+ *
+ * @see LuaState#patternCache
+ */
+public final class LuaPattern {
+	/**
+	 * The maximum number of compiled patterns kept by each {@link LuaState}.
+	 */
+	public static final int CACHE_SIZE = 64;
+
+	private static final LuaPattern UNSUPPORTED = new LuaPattern();
+
+	static final byte SINGLE = 0;
+	static final byte OPEN = 1;
+	static final byte POSITION = 2;
+	static final byte CLOSE = 3;
+	static final byte BACKREF = 4;
+	static final byte BALANCE = 5;
+	static final byte FRONTIER = 6;
+	static final byte END = 7;
+
+	static final byte ONE = 0;
+
+	/**
+	 * Returned by {@link #match(StringMatch.MatchState, int, int)} when the match ran out of steps, and should be
+	 * finished by {@link #nfa} instead.
+	 */
+	static final int ABORT = -2;
+
+	/**
+	 * The kind of each item.
+	 */
+	final byte[] kinds;
+
+	/**
+	 * The quantifier ({@code ?}, {@code *}, {@code +} or {@code -}) of each {@link #SINGLE} item, or {@link #ONE}.
+	 */
+	final byte[] quantifiers;
+
+	/**
+	 * The character set for {@link #SINGLE} and {@link #FRONTIER} items, as four 64-bit words.
+	 */
+	final long[][] sets;
+
+	/**
+	 * The capture index for {@link #CLOSE} and {@link #BACKREF} items, or the two delimiters of a {@link #BALANCE}
+	 * item packed into one int.
+	 */
+	final int[] args;
+
+	/**
+	 * A literal string which every match must start with, or {@code null}.
+	 */
+	private final LuaString prefix;
+
+	/**
+	 * The set of characters which every match must start with, or {@code null}.
+	 */
+	private final long[] firstSet;
+
+	/**
+	 * The non-backtracking form of this pattern, or {@code null} if it cannot be matched without backtracking.
+	 */
+	final PatternNfa nfa;
+
+	private LuaPattern() {
+		kinds = quantifiers = null;
+		sets = null;
+		args = null;
+		prefix = null;
+		firstSet = null;
+		nfa = null;
+	}
+
+	private LuaPattern(byte[] kinds, byte[] quantifiers, long[][] sets, int[] args) {
+		this.kinds = kinds;
+		this.quantifiers = quantifiers;
+		this.sets = sets;
+		this.args = args;
+
+		// Captures do not consume anything, so skip over them when looking for the first character.
+		int item = 0;
+		while (item < kinds.length && (kinds[item] == OPEN || kinds[item] == POSITION)) item++;
+
+		int start = item;
+		while (item < kinds.length && kinds[item] == SINGLE && quantifiers[item] == ONE && singleChar(sets[item]) >= 0) {
+			item++;
+		}
+
+		if (item - start > 1) {
+			byte[] bytes = new byte[item - start];
+			for (int i = start; i < item; i++) bytes[i - start] = (byte) singleChar(sets[i]);
+			prefix = LuaString.valueOf(bytes);
+			firstSet = null;
+		} else if (start < kinds.length && kinds[start] == SINGLE && (quantifiers[start] == ONE || quantifiers[start] == '+')) {
+			prefix = null;
+			firstSet = sets[start];
+		} else if (start < kinds.length && kinds[start] == BALANCE) {
+			prefix = null;
+			firstSet = new long[4];
+			set(firstSet, args[start] >> 8);
+		} else {
+			prefix = null;
+			firstSet = null;
+		}
+
+		nfa = PatternNfa.compile(this);
+	}
+
+	/**
+	 * Get the compiled form of a pattern, compiling it if it is not already in the state's cache.
+	 *
+	 * @param state   The current Lua state.
+	 * @param pattern The pattern to compile. A leading {@code ^} is treated as an anchor.
+	 * @return The compiled pattern, or {@code null} if it could not be compiled.
+	 */
+	static LuaPattern get(LuaState state, LuaString pattern) {
+		Map<LuaString, LuaPattern> cache = state.patternCache;
+		LuaPattern compiled = cache.get(pattern);
+		if (compiled == null) {
+			compiled = compile(pattern);
+
+			// Avoid retaining a larger string which this pattern is a substring of.
+			LuaString key = pattern.bytes.length == pattern.length ? pattern
+				: LuaString.valueOf(Arrays.copyOfRange(pattern.bytes, pattern.offset, pattern.offset + pattern.length));
+			cache.put(key, compiled);
+		}
+
+		return compiled == UNSUPPORTED ? null : compiled;
+	}
+
+	private static LuaPattern compile(LuaString p) {
+		StringMatch.MatchState helper = new StringMatch.MatchState(null, EMPTYSTRING, p, null);
+
+		int length = p.length;
+		byte[] kinds = new byte[length + 1];
+		byte[] quantifiers = new byte[length + 1];
+		long[][] sets = new long[length + 1][];
+		int[] args = new int[length + 1];
+		int items = 0;
+
+		// The captures which have been opened and not yet closed, and whether each capture is finished.
+		int[] open = new int[StringMatch.MAX_CAPTURES];
+		int openCount = 0;
+		boolean[] finished = new boolean[StringMatch.MAX_CAPTURES];
+		int level = 0;
+
+		int poffset = length > 0 && p.luaByte(0) == '^' ? 1 : 0;
+		try {
+			while (poffset < length) {
+				int c = p.luaByte(poffset);
+				int item = items;
+				switch (c) {
+					case '(':
+						if (level >= StringMatch.MAX_CAPTURES) return UNSUPPORTED;
+						if (poffset + 1 < length && p.luaByte(poffset + 1) == ')') {
+							// Leave position captures unfinished, as back references to them are not supported.
+							kinds[items++] = POSITION;
+							level++;
+							poffset += 2;
+						} else {
+							kinds[items++] = OPEN;
+							open[openCount++] = level++;
+							poffset++;
+						}
+						continue;
+					case ')': {
+						if (openCount == 0) return UNSUPPORTED;
+						int capture = open[--openCount];
+						finished[capture] = true;
+						kinds[items] = CLOSE;
+						args[items++] = capture;
+						poffset++;
+						continue;
+					}
+					case '$':
+						if (poffset + 1 == length) {
+							kinds[items++] = END;
+							poffset++;
+							continue;
+						}
+						break;
+					case L_ESC: {
+						if (poffset + 1 == length) return UNSUPPORTED;
+						int next = p.luaByte(poffset + 1);
+						if (next == 'b') {
+							if (poffset + 2 >= length || poffset + 3 >= length) return UNSUPPORTED;
+							kinds[items] = BALANCE;
+							args[items++] = p.luaByte(poffset + 2) << 8 | p.luaByte(poffset + 3);
+							poffset += 4;
+							continue;
+						} else if (next == 'f') {
+							poffset += 2;
+							if (poffset == length || p.luaByte(poffset) != '[') return UNSUPPORTED;
+							int ep = helper.classend(poffset);
+							kinds[items] = FRONTIER;
+							sets[items++] = compileSet(helper, poffset, ep);
+							poffset = ep;
+							continue;
+						} else if (Character.isDigit((char) next)) {
+							int capture = next - '1';
+							if (capture < 0 || capture >= level || !finished[capture]) return UNSUPPORTED;
+							kinds[items] = BACKREF;
+							args[items++] = capture;
+							poffset += 2;
+							continue;
+						}
+						break;
+					}
+				}
+
+				int ep = helper.classend(poffset);
+				kinds[item] = SINGLE;
+				sets[item] = compileSet(helper, poffset, ep);
+				int quantifier = ep < length ? p.luaByte(ep) : 0;
+				if (quantifier == '?' || quantifier == '*' || quantifier == '+' || quantifier == '-') {
+					quantifiers[item] = (byte) quantifier;
+					ep++;
+				}
+				items++;
+				poffset = ep;
+			}
+		} catch (LuaError e) {
+			return UNSUPPORTED;
+		}
+
+		return new LuaPattern(
+			Arrays.copyOf(kinds, items), Arrays.copyOf(quantifiers, items),
+			Arrays.copyOf(sets, items), Arrays.copyOf(args, items)
+		);
+	}
+
+	private static long[] compileSet(StringMatch.MatchState helper, int poffset, int ep) {
+		long[] set = new long[4];
+		for (int c = 0; c < 256; c++) {
+			if (helper.singlematch(c, poffset, ep)) set(set, c);
+		}
+		return set;
+	}
+
+	private static void set(long[] set, int c) {
+		set[c >> 6] |= 1L << c;
+	}
+
+	static boolean has(long[] set, int c) {
+		return (set[c >> 6] & (1L << c)) != 0;
+	}
+
+	private static int singleChar(long[] set) {
+		int found = -1;
+		for (int i = 0; i < 4; i++) {
+			long word = set[i];
+			if (word == 0) continue;
+			if (found >= 0 || Long.bitCount(word) != 1) return -1;
+			found = i * 64 + Long.numberOfTrailingZeros(word);
+		}
+		return found;
+	}
+
+	/**
+	 * Find the first position at or after {@code soffset} where a match could start.
+	 *
+	 * @param s       The subject string.
+	 * @param soffset The position to start searching from.
+	 * @return The first possible start of a match, or {@code s.length() + 1} if there is none.
+	 */
+	int skip(LuaString s, int soffset) {
+		LuaString prefix = this.prefix;
+		if (prefix != null) {
+			int index = soffset <= s.length ? s.indexOf(prefix, soffset) : -1;
+			return index < 0 ? s.length + 1 : index;
+		}
+
+		long[] firstSet = this.firstSet;
+		if (firstSet != null) {
+			byte[] bytes = s.bytes;
+			int offset = s.offset, length = s.length;
+			for (; soffset < length; soffset++) {
+				if (has(firstSet, bytes[offset + soffset] & 0xFF)) return soffset;
+			}
+			return length + 1;
+		}
+
+		return soffset;
+	}
+
+	/**
+	 * Attempt to match this pattern, starting at a given item.
+	 *
+	 * @param ms      The match state, holding the subject and captures.
+	 * @param soffset The position in the subject.
+	 * @param item    The current pattern item.
+	 * @return The end of the match, {@code -1} if there was no match, or {@link #ABORT} if it took too many steps.
+	 * @throws LuaError If the match was interrupted.
+	 */
+	int match(StringMatch.MatchState ms, int soffset, int item) throws LuaError {
+		final LuaString s = ms.s;
+		final int length = s.length;
+		while (true) {
+			ms.handler.poll();
+			if (--ms.steps < 0 && nfa != null) return ABORT;
+
+			if (item == kinds.length) return soffset;
+			switch (kinds[item]) {
+				case OPEN:
+					return startCapture(ms, soffset, item + 1, StringMatch.CAP_UNFINISHED);
+				case POSITION:
+					return startCapture(ms, soffset, item + 1, StringMatch.CAP_POSITION);
+				case CLOSE: {
+					int capture = args[item];
+					ms.clen[capture] = soffset - ms.cinit[capture];
+					int res = match(ms, soffset, item + 1);
+					if (res == -1) ms.clen[capture] = StringMatch.CAP_UNFINISHED;
+					return res;
+				}
+				case BACKREF: {
+					int capture = args[item];
+					int len = ms.clen[capture];
+					if (length - soffset < len || !LuaString.equals(s, ms.cinit[capture], s, soffset, len)) return -1;
+					soffset += len;
+					item++;
+					continue;
+				}
+				case BALANCE: {
+					int open = args[item] >> 8, close = args[item] & 0xFF;
+					if (soffset >= length || s.luaByte(soffset) != open) return -1;
+					int depth = 1;
+					while (true) {
+						if (++soffset >= length) return -1;
+						int c = s.luaByte(soffset);
+						if (c == close) {
+							if (--depth == 0) break;
+						} else if (c == open) {
+							depth++;
+						}
+					}
+					soffset++;
+					item++;
+					continue;
+				}
+				case FRONTIER: {
+					long[] set = sets[item];
+					int previous = soffset == 0 ? 0 : s.luaByte(soffset - 1);
+					if (has(set, previous) || (soffset < length && !has(set, s.luaByte(soffset)))) return -1;
+					item++;
+					continue;
+				}
+				case END:
+					return soffset == length ? soffset : -1;
+			}
+
+			long[] set = sets[item];
+			boolean m = soffset < length && has(set, s.luaByte(soffset));
+			switch (quantifiers[item]) {
+				case '?': {
+					int res;
+					if (m && (res = match(ms, soffset + 1, item + 1)) != -1) return res;
+					item++;
+					continue;
+				}
+				case '*':
+					return maxExpand(ms, soffset, item);
+				case '+':
+					return m ? maxExpand(ms, soffset + 1, item) : -1;
+				case '-':
+					return minExpand(ms, soffset, item);
+				default:
+					if (!m) return -1;
+					soffset++;
+					item++;
+			}
+		}
+	}
+
+	private int maxExpand(StringMatch.MatchState ms, int soffset, int item) throws LuaError {
+		LuaString s = ms.s;
+		long[] set = sets[item];
+		int i = 0;
+		while (soffset + i < s.length && has(set, s.luaByte(soffset + i))) i++;
+
+		for (; i >= 0; i--) {
+			int res = match(ms, soffset + i, item + 1);
+			if (res != -1) return res;
+		}
+		return -1;
+	}
+
+	private int minExpand(StringMatch.MatchState ms, int soffset, int item) throws LuaError {
+		LuaString s = ms.s;
+		long[] set = sets[item];
+		while (true) {
+			int res = match(ms, soffset, item + 1);
+			if (res != -1) {
+				return res;
+			} else if (soffset < s.length && has(set, s.luaByte(soffset))) {
+				soffset++;
+			} else {
+				return -1;
+			}
+		}
+	}
+
+	private int startCapture(StringMatch.MatchState ms, int soffset, int item, int what) throws LuaError {
+		int level = ms.level;
+		ms.cinit[level] = soffset;
+		ms.clen[level] = what;
+		ms.level = level + 1;
+
+		int res = match(ms, soffset, item);
+		if (res == -1) ms.level--;
+		return res;
+	}
+}
@@ -49,6 +49,13 @@ import static org.squiddev.cobalt.ValueFactory.varargsOf;
 public class MathLib implements LuaLibrary {
 	@Override
 	public LuaValue add(LuaState state, LuaTable env) {
+		LuaTable t = state.sharedLibraries ? Shared.TABLE : create();
+		env.rawset("math", t);
+		state.loadedPackages.rawset("math", t);
+		return t;
+	}
+
+	private static LuaTable create() {
 		LuaTable t = new LuaTable(0, 30);
 		t.rawset("pi", ValueFactory.valueOf(Math.PI));
 		t.rawset("huge", LuaDouble.POSINF);
@@ -67,12 +74,18 @@ public class MathLib implements LuaLibrary {
 			"frexp", "max", "min", "modf",
 			"randomseed", "random",});
 		t.rawset("mod", t.rawget("fmod"));
-
-		env.rawset("math", t);
-		state.loadedPackages.rawset("math", t);
 		return t;
 	}
 
+	/**
+	 * The library table shared between states, created on first use.
+	 *
+	 * @see LuaState#sharedLibraries
+	 */
+	private static final class Shared {
+		static final LuaTable TABLE = create().freeze();
+	}
+
 	private static final class MathLib1 extends OneArgFunction {
 		@Override
 		public LuaValue call(LuaState state, LuaValue arg) throws LuaError {
@@ -0,0 +1,334 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Original Source: Copyright (c) 2009-2011 Luaj.org. All rights reserved.
+ * Modifications: Copyright (c) 2015-2020 SquidDev
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.squiddev.cobalt.lib;
+
+import org.squiddev.cobalt.LuaError;
+import org.squiddev.cobalt.LuaString;
+
+import java.util.Arrays;
+
+/**
+ * A non-backtracking matcher for {@link LuaPattern}s, which runs in time linear in the length of the subject.
+ *
+ * The pattern is translated into a small program and run as a Pike VM: every possible path through the pattern is
+ * advanced in lock step, one character at a time. Paths are kept in the order the backtracking matcher would try
+ * them, so the match and captures found are exactly the same.
+ *
+ * This only supports patterns without back references, {@code %b} or {@code %f}, as these cannot be matched this way.
+ */
+final class PatternNfa {
+	private static final byte CHAR = 0;
+	private static final byte SPLIT = 1;
+	private static final byte JUMP = 2;
+	private static final byte SAVE = 3;
+	private static final byte END = 4;
+	private static final byte MATCH = 5;
+
+	private final byte[] ops;
+
+	/**
+	 * The target of {@link #JUMP} and first target of {@link #SPLIT} instructions, or the slot of {@link #SAVE}
+	 * instructions.
+	 */
+	private final int[] x;
+
+	/**
+	 * The second (lower priority) target of {@link #SPLIT} instructions.
+	 */
+	private final int[] y;
+
+	/**
+	 * The character set of {@link #CHAR} instructions.
+	 */
+	private final long[][] sets;
+
+	/**
+	 * Whether each capture is a position capture.
+	 */
+	private final boolean[] positions;
+
+	/**
+	 * The number of capture slots. Slot 0 holds the start of the match, followed by the start and end of each
+	 * capture.
+	 */
+	private final int slots;
+
+	private PatternNfa(byte[] ops, int[] x, int[] y, long[][] sets, boolean[] positions) {
+		this.ops = ops;
+		this.x = x;
+		this.y = y;
+		this.sets = sets;
+		this.positions = positions;
+		this.slots = 1 + positions.length * 2;
+	}
+
+	/**
+	 * Translate a compiled pattern into a program.
+	 *
+	 * @param pattern The pattern to translate.
+	 * @return The translated program, or {@code null} if the pattern uses an item which cannot be matched without
+	 * backtracking.
+	 */
+	static PatternNfa compile(LuaPattern pattern) {
+		byte[] kinds = pattern.kinds;
+		int items = kinds.length;
+
+		byte[] ops = new byte[items * 3 + 1];
+		int[] x = new int[ops.length];
+		int[] y = new int[ops.length];
+		long[][] sets = new long[ops.length][];
+		boolean[] positions = new boolean[StringMatch.MAX_CAPTURES];
+		int captures = 0;
+
+		int pc = 0;
+		for (int item = 0; item < items; item++) {
+			switch (kinds[item]) {
+				case LuaPattern.OPEN:
+					ops[pc] = SAVE;
+					x[pc++] = 1 + captures++ * 2;
+					break;
+				case LuaPattern.POSITION:
+					positions[captures] = true;
+					ops[pc] = SAVE;
+					x[pc++] = 1 + captures++ * 2;
+					break;
+				case LuaPattern.CLOSE:
+					ops[pc] = SAVE;
+					x[pc++] = 2 + pattern.args[item] * 2;
+					break;
+				case LuaPattern.END:
+					ops[pc++] = END;
+					break;
+				case LuaPattern.SINGLE: {
+					long[] set = pattern.sets[item];
+					switch (pattern.quantifiers[item]) {
+						case '?':
+							// split L1, L2; L1: char; L2:
+							ops[pc] = SPLIT;
+							x[pc] = pc + 1;
+							y[pc] = pc + 2;
+							ops[++pc] = CHAR;
+							sets[pc++] = set;
+							break;
+						case '*':
+						case '-': {
+							// L0: split L1, L2; L1: char; jump L0; L2:
+							boolean lazy = pattern.quantifiers[item] == '-';
+							int start = pc;
+							ops[pc] = SPLIT;
+							x[pc] = lazy ? pc + 3 : pc + 1;
+							y[pc] = lazy ? pc + 1 : pc + 3;
+							ops[++pc] = CHAR;
+							sets[pc++] = set;
+							ops[pc] = JUMP;
+							x[pc++] = start;
+							break;
+						}
+						case '+':
+							// L0: char; split L0, L1; L1:
+							ops[pc] = CHAR;
+							sets[pc++] = set;
+							ops[pc] = SPLIT;
+							x[pc] = pc - 1;
+							y[pc] = pc + 1;
+							pc++;
+							break;
+						default:
+							ops[pc] = CHAR;
+							sets[pc++] = set;
+							break;
+					}
+					break;
+				}
+				default:
+					return null;
+			}
+		}
+		ops[pc++] = MATCH;
+
+		return new PatternNfa(
+			Arrays.copyOf(ops, pc), Arrays.copyOf(x, pc), Arrays.copyOf(y, pc), Arrays.copyOf(sets, pc),
+			Arrays.copyOf(positions, captures)
+		);
+	}
+
+	/**
+	 * Find the first match of this pattern.
+	 *
+	 * @param ms       The match state, which receives the captures and the end of the match.
+	 * @param pattern  The pattern this program was translated from, used to skip positions which cannot match.
+	 * @param soffset  The first position a match may start at.
+	 * @param last     The last position a match may start at.
+	 * @param anchored Whether the match must start at {@code soffset}.
+	 * @return The start of the match, or {@code -1} if there is none.
+	 * @throws LuaError If the match was interrupted.
+	 */
+	int find(StringMatch.MatchState ms, LuaPattern pattern, int soffset, int last, boolean anchored) throws LuaError {
+		LuaString s = ms.s;
+		byte[] bytes = s.bytes;
+		int offset = s.offset, length = s.length;
+
+		Threads current = ms.threads(this), next = current.other;
+		current.clear();
+
+		int[] matched = null;
+		for (int sp = soffset; ; sp++) {
+			ms.handler.poll();
+
+			// Start a new path at this position. It is tried after every path which started earlier.
+			if (matched == null && sp <= last && (sp == soffset || !anchored)) {
+				if (current.size == 0 && !anchored && (sp = pattern.skip(s, sp)) > last) break;
+
+				int[] caps = new int[slots];
+				Arrays.fill(caps, -1);
+				caps[0] = sp;
+				add(current, 0, sp, length, caps);
+			}
+
+			if (current.size == 0) break;
+
+			int c = sp < length ? bytes[offset + sp] & 0xFF : -1;
+			next.clear();
+			for (int i = 0; i < current.size; i++) {
+				int pc = current.dense[i];
+				byte op = ops[pc];
+				if (op == CHAR) {
+					if (c >= 0 && LuaPattern.has(sets[pc], c)) add(next, pc + 1, sp + 1, length, current.caps[pc]);
+				} else if (op == MATCH) {
+					// Any remaining paths would be tried after this one, so can be discarded.
+					matched = current.caps[pc];
+					ms.matchEnd = sp;
+					break;
+				}
+			}
+
+			Threads swap = current;
+			current = next;
+			next = swap;
+		}
+
+		if (matched == null) return -1;
+
+		int captures = positions.length;
+		ms.level = captures;
+		for (int i = 0; i < captures; i++) {
+			int start = matched[1 + i * 2], end = matched[2 + i * 2];
+			ms.cinit[i] = start;
+			ms.clen[i] = positions[i] ? StringMatch.CAP_POSITION : end < 0 ? StringMatch.CAP_UNFINISHED : end - start;
+		}
+		return matched[0];
+	}
+
+	/**
+	 * Add a path to a thread list, following any instructions which do not consume a character.
+	 *
+	 * Capture arrays are never modified once created, so may be shared between paths.
+	 */
+	private void add(Threads list, int pc, int sp, int length, int[] caps) {
+		int[] stack = list.stack;
+		int[][] capStack = list.capStack;
+		int top = 0;
+		stack[top] = pc;
+		capStack[top++] = caps;
+
+		while (top > 0) {
+			pc = stack[--top];
+			caps = capStack[top];
+			capStack[top] = null;
+			if (!list.add(pc)) continue;
+
+			switch (ops[pc]) {
+				case CHAR:
+				case MATCH:
+					list.caps[pc] = caps;
+					break;
+				case JUMP:
+					stack[top] = x[pc];
+					capStack[top++] = caps;
+					break;
+				case SPLIT:
+					// Push the lower priority branch first, so the higher priority one is followed first.
+					stack[top] = y[pc];
+					capStack[top++] = caps;
+					stack[top] = x[pc];
+					capStack[top++] = caps;
+					break;
+				case SAVE: {
+					int[] copy = caps.clone();
+					copy[x[pc]] = sp;
+					stack[top] = pc + 1;
+					capStack[top++] = copy;
+					break;
+				}
+				case END:
+					if (sp == length) {
+						stack[top] = pc + 1;
+						capStack[top++] = caps;
+					}
+					break;
+			}
+		}
+	}
+
+	Threads createThreads() {
+		Threads first = new Threads(ops.length), second = new Threads(ops.length);
+		first.other = second;
+		second.other = first;
+		return first;
+	}
+
+	/**
+	 * An ordered set of program positions, with the captures of each path.
+	 */
+	static final class Threads {
+		final int[] dense;
+		final int[] sparse;
+		final int[][] caps;
+		final int[] stack;
+		final int[][] capStack;
+		int size;
+		Threads other;
+
+		Threads(int length) {
+			dense = new int[length];
+			sparse = new int[length];
+			caps = new int[length][];
+			stack = new int[length * 2 + 1];
+			capStack = new int[length * 2 + 1][];
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		boolean add(int pc) {
+			int index = sparse[pc];
+			if (index < size && dense[index] == pc) return false;
+			sparse[pc] = size;
+			dense[size++] = pc;
+			return true;
+		}
+	}
+}
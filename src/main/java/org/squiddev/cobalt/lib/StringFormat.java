@@ -6,8 +6,27 @@ import static org.squiddev.cobalt.Constants.*;
 import static org.squiddev.cobalt.lib.StringLib.L_ESC;
 
 class StringFormat {
+	/**
+	 * The space to reserve for each non-string argument.
+	 */
+	private static final int NUMBER_LENGTH = 16;
+
+	/**
+	 * The largest buffer to allocate up front. Anything larger is grown as needed.
+	 */
+	private static final int MAX_ESTIMATE = 1 << 16;
+
 	static class FormatState {
 		final LuaString format;
+
+		/**
+		 * The compiled format string, or {@code null} if it must be parsed as we go.
+		 */
+		final FormatProgram program;
+
+		/**
+		 * The position in the format string, or the index of the next specifier if this format is compiled.
+		 */
 		int i = 0;
 
 		final Buffer buffer;
@@ -16,9 +35,10 @@ class StringFormat {
 		final Varargs args;
 		FormatDesc current;
 
-		FormatState(LuaString format, Buffer buffer, Varargs args) {
+		FormatState(LuaString format, FormatProgram program, Buffer buffer, Varargs args) {
 			this.args = args;
 			this.format = format;
+			this.program = program;
 			this.buffer = buffer;
 		}
 	}
@@ -49,9 +69,23 @@ class StringFormat {
 	 * @throws LuaError On invalid arguments.
 	 */
 	static Varargs format(LuaState state, FormatState format) throws LuaError, UnwindThrowable {
+		Buffer result = format.buffer;
+
+		FormatProgram program = format.program;
+		if (program != null) {
+			byte[][] text = program.text;
+			FormatDesc[] specifiers = program.specifiers;
+			for (int i = format.i; i < specifiers.length; i++) {
+				result.append(text[i]);
+				format(state, format, specifiers[i], format.args.arg(++format.arg), i + 1);
+			}
+
+			result.append(text[specifiers.length]);
+			return result.toLuaString();
+		}
+
 		LuaString fmt = format.format;
 		final int n = fmt.length();
-		Buffer result = format.buffer;
 
 		for (int i = format.i; i < n; ) {
 			int c = fmt.luaByte(i++);
@@ -72,44 +106,76 @@ class StringFormat {
 			FormatDesc fdsc = new FormatDesc(fmt, i);
 			i += fdsc.length;
 
-			switch (fdsc.conversion) {
-				case 'c':
-					fdsc.format(result, (byte) value.checkLong());
-					break;
-				case 'i':
-				case 'd':
-				case 'o':
-				case 'u':
-				case 'x':
-				case 'X':
-					fdsc.format(result, value.checkLong());
-					break;
-				case 'e':
-				case 'E':
-				case 'f':
-				case 'g':
-				case 'G':
-					fdsc.format(result, value.checkDouble());
-					break;
-				case 'q':
-					addQuoted(result, format.arg, value);
-					break;
-				case 's': {
-					try {
-						addString(result, fdsc, OperationHelper.checkToString(OperationHelper.toString(state, value)));
-					} catch (UnwindThrowable e) {
-						format.current = fdsc;
-						format.i = i;
-						throw e;
-					}
-				}
+			format(state, format, fdsc, value, i);
+		}
+
+		return result.toLuaString();
+	}
+
+	/**
+	 * Format a single value.
+	 *
+	 * @param state  The current Lua state.
+	 * @param format The current format state.
+	 * @param fdsc   The specifier to format with.
+	 * @param value  The value to format.
+	 * @param next   The position to resume from if converting this value to a string yields.
+	 * @throws LuaError        On invalid arguments.
+	 * @throws UnwindThrowable If converting this value to a string yields.
+	 */
+	private static void format(LuaState state, FormatState format, FormatDesc fdsc, LuaValue value, int next) throws LuaError, UnwindThrowable {
+		Buffer result = format.buffer;
+		switch (fdsc.conversion) {
+			case 'c':
+				fdsc.format(result, (byte) value.checkLong());
 				break;
-				default:
-					throw new LuaError("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
+			case 'i':
+			case 'd':
+			case 'o':
+			case 'u':
+			case 'x':
+			case 'X':
+				fdsc.format(result, value.checkLong());
+				break;
+			case 'e':
+			case 'E':
+			case 'f':
+			case 'g':
+			case 'G':
+				fdsc.format(result, value.checkDouble());
+				break;
+			case 'q':
+				addQuoted(result, format.arg, value);
+				break;
+			case 's': {
+				try {
+					addString(result, fdsc, OperationHelper.checkToString(OperationHelper.toString(state, value)));
+				} catch (UnwindThrowable e) {
+					format.current = fdsc;
+					format.i = next;
+					throw e;
+				}
 			}
+			break;
+			default:
+				throw new LuaError("invalid option '%" + (char) fdsc.conversion + "' to 'format'");
 		}
+	}
 
-		return result.toLuaString();
+	/**
+	 * Estimate the length of a formatted string, so the result buffer rarely needs to grow.
+	 *
+	 * @param fmt  The format string.
+	 * @param args The arguments to {@code string.format}, including the format string.
+	 * @return The estimated length.
+	 */
+	static int estimateLength(LuaString fmt, Varargs args) {
+		long length = fmt.length;
+		for (int i = 2, n = args.count(); i <= n; i++) {
+			LuaValue arg = args.arg(i);
+			length += arg instanceof LuaString ? ((LuaString) arg).length : NUMBER_LENGTH;
+		}
+		return (int) Math.min(length, MAX_ESTIMATE);
 	}
 
 	static void addString(Buffer result, FormatDesc fdsc, LuaString s) {
@@ -54,6 +54,15 @@ public class StringLib implements LuaLibrary {
 
 	@Override
 	public LuaValue add(LuaState state, LuaTable env) {
+		LuaTable t = state.sharedLibraries ? Shared.TABLE : create();
+		env.rawset("string", t);
+
+		state.stringMetatable = tableOf(INDEX, t);
+		state.loadedPackages.rawset("string", t);
+		return t;
+	}
+
+	private static LuaTable create() {
 		LuaTable t = new LuaTable();
 		LibFunction.bind(t, StringLib1::new, new String[]{
 			"len", "lower", "reverse", "upper", "packsize"
@@ -64,19 +73,24 @@ public class StringLib implements LuaLibrary {
 		LibFunction.bind(t, StringLibR::new, new String[]{"gsub", "format"});
 
 		t.rawset("gfind", t.rawget("gmatch"));
-		env.rawset("string", t);
-
-		state.stringMetatable = tableOf(INDEX, t);
-		state.loadedPackages.rawset("string", t);
 		return t;
 	}
 
+	/**
+	 * The library table shared between states, created on first use.
+	 *
+	 * @see LuaState#sharedLibraries
+	 */
+	private static final class Shared {
+		static final LuaTable TABLE = create().freeze();
+	}
+
 	static final class StringLib1 extends OneArgFunction {
 		@Override
 		public LuaValue call(LuaState state, LuaValue arg) throws LuaError {
 			switch (opcode) {
 				case 0: // len (function)
-					return valueOf(arg.checkLuaString().length());
+					return valueOf(arg.checkLuaBaseString().length());
 
 				case 1: { // lower (function)
 					LuaString string = arg.checkLuaString();
@@ -165,7 +179,7 @@ public class StringLib implements LuaLibrary {
 				}
 				case 1: { // format
 					LuaString src = args.arg(1).checkLuaString();
-					FormatState format = new FormatState(src, new Buffer(src.length), args);
+					FormatState format = new FormatState(src, FormatProgram.get(state, src), new Buffer(StringFormat.estimateLength(src, args)), args);
 					di.state = format;
 					return StringFormat.format(state, format);
 				}
@@ -203,8 +217,8 @@ public class StringLib implements LuaLibrary {
 	 * @param args the calling args
 	 */
 	static Varargs byte_(Varargs args) throws LuaError {
-		LuaString s = args.arg(1).checkLuaString();
-		int l = s.length;
+		LuaBaseString s = args.arg(1).checkLuaBaseString();
+		int l = s.length();
 		int posi = posRelative(args.arg(2).optInteger(1), l);
 		int pose = posRelative(args.arg(3).optInteger(posi), l);
 		int n, i;
@@ -287,9 +301,14 @@ public class StringLib implements LuaLibrary {
 		} else if (n == 1) {
 			return s;
 		} else {
-			final byte[] bytes = new byte[len * n];
-			for (int offset = 0; offset < bytes.length; offset += len) {
-				s.copyTo(0, bytes, offset, len);
+			long total = (long) len * n;
+			if (total > Integer.MAX_VALUE) throw new LuaError("resulting string too large");
+
+			// Copy the string once, and then double the filled prefix until the array is full.
+			final byte[] bytes = new byte[(int) total];
+			s.copyTo(bytes, 0);
+			for (int filled = len; filled < bytes.length; filled *= 2) {
+				System.arraycopy(bytes, 0, bytes, filled, Math.min(filled, bytes.length - filled));
 			}
 			return LuaString.valueOf(bytes);
 		}
@@ -307,7 +326,7 @@ public class StringLib implements LuaLibrary {
 	 * returns a suffix of s with length i.
 	 */
 	static Varargs sub(Varargs args) throws LuaError {
-		final LuaString s = args.arg(1).checkLuaString();
+		final LuaBaseString s = args.arg(1).checkLuaBaseString();
 		final int l = s.length();
 
 		int start = posRelative(args.arg(2).checkInteger(), l);
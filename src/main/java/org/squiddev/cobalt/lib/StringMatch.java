@@ -11,10 +11,16 @@ import static org.squiddev.cobalt.lib.StringLib.L_ESC;
 
 class StringMatch {
 	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
-	private static final int MAX_CAPTURES = 32;
 
-	private static final int CAP_UNFINISHED = -1;
-	private static final int CAP_POSITION = -2;
+	/**
+	 * The number of steps the backtracking matcher may take for each character of the subject.
+	 */
+	private static final int STEPS_PER_CHARACTER = 8;
+
+	static final int MAX_CAPTURES = 32;
+
+	static final int CAP_UNFINISHED = -1;
+	static final int CAP_POSITION = -2;
 
 	private static final byte MASK_ALPHA = 0x01;
 	private static final byte MASK_LOWERCASE = 0x02;
@@ -155,27 +161,29 @@ class StringMatch {
 	static Varargs gsubRun(LuaState state, GSubState gsub, Varargs result) throws LuaError, UnwindThrowable {
 		LuaString src = gsub.string;
 		final int srclen = src.length();
-		LuaString p = gsub.pattern;
 		LuaValue repl = gsub.replace;
 		int max_s = gsub.maxS;
-		final boolean anchor = p.length() > 0 && p.charAt(0) == '^';
 
 		Buffer lbuf = gsub.buffer;
 		MatchState ms = gsub.ms;
+		final boolean anchor = ms.anchor;
 
 		int soffset = 0;
 		while (gsub.n < max_s) {
-			ms.reset();
 			int res;
 
 			if (gsub.count == GSubState.EMPTY) {
-				// We haven't matched so we'll match here
-				gsub.count = res = ms.match(soffset, anchor ? 1 : 0);
-
-				if (res != -1) {
-					gsub.n++;
-					ms.add_value(state, lbuf, soffset, res, repl);
+				// Find the next match, copying everything before it
+				int next = ms.find(soffset, srclen);
+				if (next == -1) break;
+				if (next > soffset) {
+					lbuf.append(src.bytes, src.offset + soffset, next - soffset);
+					soffset = next;
 				}
+
+				gsub.count = res = ms.matchEnd;
+				gsub.n++;
+				ms.add_value(state, lbuf, soffset, res, repl);
 			} else {
 				// Otherwise we've yielded so "finish" this replacement
 				res = gsub.count;
@@ -235,27 +243,16 @@ class StringMatch {
 				return varargsOf(valueOf(result + 1), valueOf(result + pat.length()));
 			}
 		} else {
-			MatchState ms = new MatchState(state.debug, s, pat);
-
-			boolean anchor = false;
-			int poff = 0;
-			if (pat.length() > 0 && pat.luaByte(0) == '^') {
-				anchor = true;
-				poff = 1;
-			}
-
-			int soff = init;
-			do {
-				int res;
-				ms.reset();
-				if ((res = ms.match(soff, poff)) != -1) {
-					if (find) {
-						return varargsOf(valueOf(soff + 1), valueOf(res), ms.push_captures(false, soff, res));
-					} else {
-						return ms.push_captures(true, soff, res);
-					}
+			MatchState ms = new MatchState(state, s, pat, true);
+			int soff = ms.find(init, s.length());
+			if (soff != -1) {
+				int res = ms.matchEnd;
+				if (find) {
+					return varargsOf(valueOf(soff + 1), valueOf(res), ms.push_captures(false, soff, res));
+				} else {
+					return ms.push_captures(true, soff, res);
 				}
-			} while (soff++ < s.length() && !anchor);
+			}
 		}
 		return NIL;
 	}
@@ -267,23 +264,21 @@ class StringMatch {
 
 		public GMatchAux(LuaState state, LuaString src, LuaString pat) {
 			this.srclen = src.length();
-			this.ms = new MatchState(state.debug, src, pat);
+			this.ms = new MatchState(state, src, pat, false);
 			this.soffset = 0;
 		}
 
 		@Override
 		public Varargs invoke(LuaState state, Varargs args) throws LuaError {
-			for (; soffset < srclen; soffset++) {
-				ms.reset();
-				int res = ms.match(soffset, 0);
-				if (res >= 0) {
-					int soff = soffset;
-					soffset = res;
-					if (res == soff) soffset++;
-					return ms.push_captures(true, soff, res);
-				}
+			int soff = ms.find(soffset, srclen - 1);
+			if (soff == -1) {
+				soffset = srclen;
+				return NIL;
 			}
-			return NIL;
+
+			int res = ms.matchEnd;
+			soffset = res == soff ? res + 1 : res;
+			return ms.push_captures(true, soff, res);
 		}
 	}
 
@@ -307,30 +302,128 @@ class StringMatch {
 			this.replace = replace;
 			this.maxS = maxS;
 
-			ms = new MatchState(state.debug, src, pattern);
+			ms = new MatchState(state, src, pattern, true);
 			count = EMPTY;
 		}
 	}
 
 	static class MatchState {
-		private final DebugHandler handler;
+		final DebugHandler handler;
 		final LuaString s;
 		final LuaString p;
 		int level;
 		int[] cinit;
 		int[] clen;
 
-		MatchState(DebugHandler handler, LuaString s, LuaString pattern) {
+		/**
+		 * Whether the pattern starts with a {@code ^}, and so only matches at the initial position.
+		 */
+		final boolean anchor;
+
+		/**
+		 * The compiled form of this pattern, or {@code null} if it must be interpreted.
+		 */
+		private final LuaPattern compiled;
+
+		/**
+		 * The end of the last match found by {@link #find(int, int)}.
+		 */
+		int matchEnd;
+
+		/**
+		 * The number of steps the backtracking matcher may take before switching to {@link LuaPattern#nfa}.
+		 */
+		int steps;
+
+		private PatternNfa.Threads threads;
+
+		/**
+		 * Create a match state for a pattern.
+		 *
+		 * @param state       The current Lua state.
+		 * @param s           The subject string.
+		 * @param pattern     The pattern to match against.
+		 * @param allowAnchor Whether a leading {@code ^} anchors the pattern, rather than being a literal.
+		 */
+		MatchState(LuaState state, LuaString s, LuaString pattern, boolean allowAnchor) {
+			boolean caret = pattern.length() > 0 && pattern.luaByte(0) == '^';
+			this.handler = state.debug;
+			this.s = s;
+			this.p = pattern;
+			this.anchor = allowAnchor && caret;
+			this.compiled = allowAnchor || !caret ? LuaPattern.get(state, pattern) : null;
+			this.cinit = new int[MAX_CAPTURES];
+			this.clen = new int[MAX_CAPTURES];
+		}
+
+		MatchState(DebugHandler handler, LuaString s, LuaString pattern, LuaPattern compiled) {
 			this.handler = handler;
 			this.s = s;
 			this.p = pattern;
-			this.level = 0;
+			this.anchor = false;
+			this.compiled = compiled;
 			this.cinit = new int[MAX_CAPTURES];
 			this.clen = new int[MAX_CAPTURES];
 		}
 
-		void reset() {
+		/**
+		 * Find the first position at or after {@code soffset} where this pattern could match.
+		 *
+		 * @param soffset The position to start from.
+		 * @return The first possible start of a match, or past the end of the string if there is none.
+		 */
+		private int skip(int soffset) {
+			return compiled == null ? soffset : compiled.skip(s, soffset);
+		}
+
+		/**
+		 * Attempt to match the whole pattern at a position.
+		 *
+		 * @param soffset The position to match at.
+		 * @return The end of the match, or {@code -1} if it did not match.
+		 * @throws LuaError If the pattern is malformed.
+		 */
+		private int matchAt(int soffset) throws LuaError {
 			level = 0;
+			return compiled == null ? match(soffset, anchor ? 1 : 0) : compiled.match(this, soffset, 0);
+		}
+
+		/**
+		 * Find the first match of the pattern, starting at or after a given position.
+		 *
+		 * Each position is tried in turn using the backtracking matcher. For patterns without back references,
+		 * {@code %b} or {@code %f}, this is limited to a number of steps proportional to the length of the subject,
+		 * after which the linear time {@link PatternNfa} is used instead.
+		 *
+		 * @param soffset The first position a match may start at.
+		 * @param last    The last position a match may start at.
+		 * @return The start of the match, or {@code -1} if there is none. The end is stored in {@link #matchEnd}.
+		 * @throws LuaError If the pattern is malformed.
+		 */
+		int find(int soffset, int last) throws LuaError {
+			long budget = (long) (s.length - soffset + 1) * STEPS_PER_CHARACTER;
+			steps = budget > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) budget;
+
+			for (; soffset <= last; soffset++) {
+				if (!anchor && (soffset = skip(soffset)) > last) break;
+
+				int res = matchAt(soffset);
+				if (res == LuaPattern.ABORT) {
+					return compiled.nfa.find(this, compiled, soffset, last, anchor);
+				} else if (res != -1) {
+					matchEnd = res;
+					return soffset;
+				}
+
+				if (anchor) break;
+			}
+			return -1;
+		}
+
+		PatternNfa.Threads threads(PatternNfa nfa) {
+			PatternNfa.Threads threads = this.threads;
+			if (threads == null) this.threads = threads = nfa.createThreads();
+			return threads;
 		}
 
 		private void add_s(Buffer lbuf, LuaString news, int soff, int e) throws LuaError {
@@ -429,6 +522,9 @@ class StringMatch {
 			if (l < 0 || l >= level || this.clen[l] == CAP_UNFINISHED) {
 				throw new LuaError("invalid capture index");
 			}
+			if (this.clen[l] == CAP_POSITION) {
+				throw new LuaError("cannot refer to position capture");
+			}
 			return l;
 		}
 
@@ -48,15 +48,29 @@ public class TableLib implements LuaLibrary {
 
 	@Override
 	public LuaTable add(LuaState state, LuaTable env) {
+		LuaTable t = state.sharedLibraries ? Shared.TABLE : create();
+		env.rawset("table", t);
+		state.loadedPackages.rawset("table", t);
+		return t;
+	}
+
+	private static LuaTable create() {
 		LuaTable t = new LuaTable();
 		LibFunction.bind(t, TableLib1::new, new String[]{"getn", "maxn",});
 		LibFunction.bind(t, TableLibV::new, new String[]{"remove", "concat", "insert", "pack"});
 		LibFunction.bind(t, TableLibR::new, new String[]{"sort", "foreach", "foreachi", "unpack"});
-		env.rawset("table", t);
-		state.loadedPackages.rawset("table", t);
 		return t;
 	}
 
+	/**
+	 * The library table shared between states, created on first use.
+	 *
+	 * @see LuaState#sharedLibraries
+	 */
+	private static final class Shared {
+		static final LuaTable TABLE = create().freeze();
+	}
+
 	private static final class TableLib1 extends OneArgFunction {
 
 		@Override
@@ -115,7 +129,8 @@ public class TableLib implements LuaLibrary {
 					LuaTable table = args.arg(1).checkTable();
 					LuaValue compare = args.isNoneOrNil(2) ? NIL : args.arg(2).checkFunction();
 					int n = table.prepSort();
-					if (n > 1) {
+					if (n > 1 && !(compare.isNil() && table.sortPrimitive(n))) {
+						// Otherwise fall back to a heap sort, which can be resumed if the comparator yields.
 						SortState res = new SortState(table, n, compare);
 						di.state = res;
 						heapSort(state, table, n, compare, res, 0, n / 2 - 1);
@@ -25,12 +25,17 @@
 package org.squiddev.cobalt;
 
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 import org.openjdk.jmh.runner.options.TimeValue;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeUnit;
 
 import static org.squiddev.cobalt.ValueFactory.valueOf;
@@ -49,6 +54,30 @@ public class PerformanceBenchmark {
 		}
 	}
 
+	@State(Scope.Thread)
+	public static class CallScope {
+		final ScriptHelper helpers = new ScriptHelper("/perf/");
+		LuaFunction calls;
+
+		@Setup(Level.Iteration)
+		public void setup() throws Exception {
+			helpers.setupQuiet();
+			calls = (LuaFunction) LuaThread.runMain(helpers.state, LoadState.load(helpers.state, new ByteArrayInputStream((
+				"local function add(a, b) return a + b end\n" +
+					"return function() local x = 0 for i = 1, 100 do x = add(i, 1) end return x end"
+			).getBytes(StandardCharsets.UTF_8)), "=calls", helpers.globals)).first();
+		}
+	}
+
+	/**
+	 * Calls between Lua functions reuse each frame's stack, so should not allocate. Run with the GC profiler (as
+	 * {@link #main(String...)} does) and check {@code gc.alloc.rate.norm} stays close to zero.
+	 */
+	@Benchmark
+	public LuaValue calls(CallScope scope) throws LuaError, UnwindThrowable {
+		return scope.calls.call(scope.helpers.state);
+	}
+
 	@Benchmark
 	public void binarytrees(ScriptScope scope) throws Exception {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("binarytrees"), valueOf(10));
@@ -69,6 +98,11 @@ public class PerformanceBenchmark {
 		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("nsieve"), valueOf(8));
 	}
 
+	@Benchmark
+	public void primes(ScriptScope scope) throws Exception {
+		LuaThread.runMain(scope.helpers.state, scope.helpers.loadScript("primes"));
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options opts = new OptionsBuilder()
 			.include("org.squiddev.cobalt.PerformanceBenchmark.*")
@@ -77,6 +111,7 @@ public class PerformanceBenchmark {
 			.measurementTime(TimeValue.milliseconds(12000))
 			.jvmArgsPrepend("-server")
 			.forks(3)
+			.addProfiler(GCProfiler.class)
 			.build();
 		new Runner(opts).run();
 	}
@@ -25,6 +25,7 @@
 package org.squiddev.cobalt;
 
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
@@ -32,8 +33,17 @@ import org.squiddev.cobalt.compiler.CompileException;
 import org.squiddev.cobalt.debug.DebugFrame;
 import org.squiddev.cobalt.debug.DebugHandler;
 import org.squiddev.cobalt.debug.DebugState;
+import org.squiddev.cobalt.function.LuaFunction;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.squiddev.cobalt.ValueFactory.valueOf;
 
 /**
  * Tests that long running programs are terminated correctly.
@@ -69,4 +79,59 @@ public class ProtectionTest {
 	public void run(String name) throws IOException, CompileException, LuaError, InterruptedException {
 		LuaThread.runMain(helpers.state, helpers.loadScript(name));
 	}
+
+	@Test
+	public void stepBudget() throws IOException, CompileException, LuaError, InterruptedException {
+		helpers.setup(s -> s.stepBudget(1000));
+		assertEquals(valueOf(200), LuaThread.runMain(helpers.state, helpers.loadScript("budget"), valueOf(100)));
+
+		LuaError error = assertThrows(LuaError.class, () -> LuaThread.runMain(helpers.state, helpers.loadScript("budget"), valueOf(1000)));
+		assertThat(error.getMessage(), containsString("execution budget exhausted"));
+	}
+
+	@Timeout(3)
+	@Test
+	public void timeBudget() throws IOException, CompileException {
+		helpers.setup(s -> s.timeBudget(100, TimeUnit.MILLISECONDS));
+		LuaFunction function = helpers.loadScript("budget");
+
+		LuaError error = assertThrows(LuaError.class, () -> LuaThread.runMain(helpers.state, function, valueOf(Integer.MAX_VALUE)));
+		assertThat(error.getMessage(), containsString("execution budget exhausted"));
+	}
+
+	@Test
+	public void suspendOnBudget() throws IOException, CompileException, LuaError, InterruptedException {
+		helpers.setup(s -> s.stepBudget(100).suspendOnBudget(true));
+
+		int suspended = 0;
+		Varargs result = LuaThread.runMain(helpers.state, helpers.loadScript("budget"), valueOf(1000));
+		while (result == null) {
+			suspended++;
+			result = LuaThread.run(helpers.state.getCurrentThread(), Constants.NONE);
+		}
+
+		assertEquals(valueOf(2000), result.first());
+		assertTrue(suspended >= 20, "Suspended " + suspended + " times");
+	}
+
+	@Timeout(5)
+	@Test
+	public void timeBudgetExcludesHostTime() throws IOException, CompileException, LuaError, InterruptedException {
+		helpers.setup(s -> s.timeBudget(20, TimeUnit.MILLISECONDS).suspendOnBudget(true));
+		LuaFunction function = helpers.loadScript("progress");
+
+		// Time spent by the host before starting or resuming the script should not be counted against it.
+		long last = 0;
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(50);
+			Varargs result = i == 0
+				? LuaThread.runMain(helpers.state, function)
+				: LuaThread.run(helpers.state.getCurrentThread(), Constants.NONE);
+			assertEquals(null, result);
+
+			long progress = helpers.globals.rawget("progress").toLong();
+			assertTrue(progress - last > 20 * 1024, "Slice " + i + " only ran " + (progress - last) + " iterations");
+			last = progress;
+		}
+	}
 }
@@ -358,4 +358,88 @@ public class TableArrayTest {
 		}
 	}
 
+
+	@Test
+	public void testNumberArray() throws LuaError {
+		LuaTable t = new LuaTable(4, 0);
+		t.useNumberArray();
+
+		for (int i = 1; i <= 10; i++) t.rawset(i, ValueFactory.valueOf(i / 2.0));
+		t.rawset(3, Constants.NIL);
+		assertEquals(10, t.maxn(), 0);
+		assertEquals(ValueFactory.valueOf(2), t.rawget(4));
+		assertEquals(ValueFactory.valueOf(4.5), t.rawget(9));
+		assertEquals(Constants.NIL, t.rawget(3));
+		assertEquals(Constants.NIL, t.rawget(11));
+		assertEquals(9, t.keyCount());
+
+		// NaN and non-numbers are stored boxed
+		t.rawset(5, ValueFactory.valueOf(Double.NaN));
+		t.rawset(6, ValueFactory.valueOf("six"));
+		assertTrue(Double.isNaN(t.rawget(5).toDouble()));
+		assertEquals(ValueFactory.valueOf("six"), t.rawget(6));
+		assertEquals(ValueFactory.valueOf(4.5), t.rawget(9));
+		assertEquals(9, t.keyCount());
+
+		LuaTable mixed = ValueFactory.listOf(ValueFactory.valueOf(1), ValueFactory.valueOf("two"));
+		mixed.useNumberArray();
+		assertEquals(ValueFactory.valueOf("two"), mixed.rawget(2));
+	}
+
+	@Test
+	public void testSortPrimitive() throws LuaError {
+		LuaTable numbers = ValueFactory.listOf(ValueFactory.valueOf(3), ValueFactory.valueOf(-1.5), ValueFactory.valueOf(2));
+		assertTrue(numbers.sortPrimitive(numbers.prepSort()));
+		assertEquals(ValueFactory.valueOf(-1.5), numbers.rawget(1));
+		assertEquals(ValueFactory.valueOf(2), numbers.rawget(2));
+		assertEquals(ValueFactory.valueOf(3), numbers.rawget(3));
+
+		LuaTable strings = ValueFactory.listOf(ValueFactory.valueOf("b"), ValueFactory.valueOf("ab"), ValueFactory.valueOf("a"));
+		assertTrue(strings.sortPrimitive(strings.prepSort()));
+		assertEquals(ValueFactory.valueOf("a"), strings.rawget(1));
+		assertEquals(ValueFactory.valueOf("ab"), strings.rawget(2));
+		assertEquals(ValueFactory.valueOf("b"), strings.rawget(3));
+
+		LuaTable packed = new LuaTable(4, 0);
+		packed.useNumberArray();
+		for (int i = 1; i <= 4; i++) packed.rawset(i, ValueFactory.valueOf(5 - i));
+		assertTrue(packed.sortPrimitive(packed.prepSort()));
+		assertEquals(ValueFactory.valueOf(1), packed.rawget(1));
+		assertEquals(4, packed.length());
+
+		// Mixed types and holes are left for the generic sort.
+		LuaTable mixed = ValueFactory.listOf(ValueFactory.valueOf("b"), ValueFactory.valueOf(1));
+		assertFalse(mixed.sortPrimitive(mixed.prepSort()));
+		assertEquals(ValueFactory.valueOf("b"), mixed.rawget(1));
+
+		packed.rawset(2, Constants.NIL);
+		assertFalse(packed.sortPrimitive(packed.prepSort()));
+
+		// Concatenated strings may be ropes rather than flat strings.
+		LuaString big = ValueFactory.valueOf(new String(new char[200]).replace('\0', 'x'));
+		LuaTable ropes = new LuaTable();
+		for (int i = 1; i <= 50; i++) {
+			ropes.rawset(i, LuaRope.concat(LuaRope.concat(big, ValueFactory.valueOf(Integer.toString(i))), big));
+		}
+		assertTrue(ropes.sortPrimitive(ropes.prepSort()));
+		assertEquals(ValueFactory.valueOf(big + "10" + big), ropes.rawget(1));
+		assertEquals(ValueFactory.valueOf(big + "1" + big), ropes.rawget(11));
+		assertEquals(ValueFactory.valueOf(big + "9" + big), ropes.rawget(50));
+
+		// NaN has no ordering, so is left for the generic sort to reject.
+		LuaTable nan = ValueFactory.listOf(ValueFactory.valueOf(2), ValueFactory.valueOf(Double.NaN), ValueFactory.valueOf(1));
+		assertFalse(nan.sortPrimitive(nan.prepSort()));
+		assertEquals(ValueFactory.valueOf(2), nan.rawget(1));
+		assertTrue(Double.isNaN(nan.rawget(2).toDouble()));
+	}
+
+	@Test
+	public void testConcat() throws LuaError {
+		LuaTable t = ValueFactory.listOf(ValueFactory.valueOf("a"), ValueFactory.valueOf(2), ValueFactory.valueOf(3.5), ValueFactory.valueOf(""));
+		LuaString sep = ValueFactory.valueOf(", ");
+		assertEquals("a, 2, 3.5, ", t.concat(sep, 1, 4).toString());
+		assertEquals("2", t.concat(sep, 2, 2).toString());
+		assertEquals("", t.concat(sep, 3, 2).toString());
+		assertThrows(LuaError.class, () -> t.concat(sep, 1, 5));
+	}
 }
@@ -27,10 +27,17 @@ package org.squiddev.cobalt.table;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
+import org.squiddev.cobalt.compiler.LoadState;
+import org.squiddev.cobalt.function.LuaFunction;
+import org.squiddev.cobalt.function.LuaInterpretedFunction;
 import org.squiddev.cobalt.function.TwoArgFunction;
+import org.squiddev.cobalt.lib.UncheckedLuaError;
+import org.squiddev.cobalt.lib.jse.JsePlatform;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Tests for tables used as lists.
@@ -250,4 +257,153 @@ public class TableHashTest {
 		assertEquals(ValueFactory.valueOf("bbb"), t.next(ValueFactory.valueOf("aa")).arg(2));
 		assertEquals(Constants.NIL, t.next(ValueFactory.valueOf("bb")));
 	}
+
+	@Test
+	public void testShape() throws LuaError {
+		LuaTable first = new LuaTable();
+		first.rawset("x", ValueFactory.valueOf(1));
+		first.rawset("y", ValueFactory.valueOf(2));
+
+		LuaTable.Shape shape = first.getShape();
+		assertNotNull(shape);
+
+		LuaTable second = new LuaTable(0, shape);
+		assertEquals(first.getHashLength(), second.getHashLength());
+		assertEquals(0, second.keyCount());
+		assertEquals(Constants.NIL, second.next(Constants.NIL));
+
+		second.rawset("y", ValueFactory.valueOf(3));
+		assertEquals(1, second.keyCount());
+		assertEquals(ValueFactory.valueOf(3), second.rawget("y"));
+		assertEquals(Constants.NIL, second.rawget("x"));
+
+		// Adding new keys to either table should not affect the other.
+		second.rawset("z", ValueFactory.valueOf(4));
+		first.rawset("w", ValueFactory.valueOf(5));
+		assertEquals(Constants.NIL, first.rawget("z"));
+		assertEquals(Constants.NIL, second.rawget("w"));
+		assertEquals(ValueFactory.valueOf(2), first.rawget("y"));
+		assertEquals(ValueFactory.valueOf(3), second.rawget("y"));
+
+		LuaTable third = new LuaTable(0, shape);
+		assertEquals(0, third.keyCount());
+		third.rawset("x", ValueFactory.valueOf(6));
+		assertEquals(ValueFactory.valueOf(6), third.rawget("x"));
+		assertEquals(ValueFactory.valueOf(1), first.rawget("x"));
+
+		// Only tables with string keys have a shape
+		LuaTable mixed = new LuaTable();
+		mixed.rawset(ValueFactory.valueOf(1.5), ValueFactory.valueOf(1));
+		assertNull(mixed.getShape());
+		assertNull(new LuaTable().getShape());
+	}
+
+	@Test
+	public void testMetamethodCache() throws LuaError, UnwindThrowable {
+		LuaTable mt = new LuaTable();
+		LuaTable t = new LuaTable();
+		t.setMetatable(state, mt);
+		assertEquals(Constants.NIL, mt.rawget(CachedMetamethod.ADD));
+		assertEquals(Constants.NIL, t.metatag(state, CachedMetamethod.TOSTRING));
+
+		LuaValue add = ValueFactory.valueOf("add");
+		mt.rawset(Constants.ADD, add);
+		assertEquals(add, mt.rawget(CachedMetamethod.ADD));
+		assertEquals(add, t.metatag(state, CachedMetamethod.ADD));
+		assertEquals(Constants.NIL, mt.rawget(CachedMetamethod.SUB));
+
+		mt.rawset(Constants.ADD, Constants.NIL);
+		assertEquals(Constants.NIL, t.metatag(state, CachedMetamethod.ADD));
+	}
+
+	@Test
+	public void testConstructorShapes() throws Exception {
+		LuaState state = LuaState.builder().tableShapes(true).build();
+		LuaTable globals = JsePlatform.standardGlobals(state);
+		LuaFunction function = LoadState.load(state, new ByteArrayInputStream(
+			"local t = {} for i = 1, ... do t['k' .. i] = i end return t".getBytes(StandardCharsets.UTF_8)
+		), "=test", globals);
+
+		// A large first table should not determine the layout of later ones.
+		LuaTable big = (LuaTable) LuaThread.runMain(state, function, ValueFactory.valueOf(1000)).first();
+		assertTrue(big.getHashLength() >= 1000);
+		assertEquals(0, ((LuaTable) LuaThread.runMain(state, function, ValueFactory.valueOf(0)).first()).getHashLength());
+
+		function = LoadState.load(state, new ByteArrayInputStream(
+			"local t = {} for i = 1, ... do t['k' .. i] = i end return t".getBytes(StandardCharsets.UTF_8)
+		), "=test", globals);
+		LuaTable small = (LuaTable) LuaThread.runMain(state, function, ValueFactory.valueOf(2)).first();
+		assertEquals(small.getHashLength(), ((LuaTable) LuaThread.runMain(state, function, ValueFactory.valueOf(0)).first()).getHashLength());
+
+		// Other states sharing the prototype do not use its shapes.
+		LuaState other = LuaState.builder().tableShapes(true).build();
+		LuaFunction otherFunction = new LuaInterpretedFunction(((LuaInterpretedFunction) function).getPrototype(), JsePlatform.standardGlobals(other));
+		assertEquals(0, ((LuaTable) LuaThread.runMain(other, otherFunction, ValueFactory.valueOf(0)).first()).getHashLength());
+	}
+
+	@Test
+	public void testFreeze() throws Exception {
+		LuaTable t = new LuaTable();
+		t.rawset("x", ValueFactory.valueOf(1));
+		t.rawset(1, ValueFactory.valueOf(2));
+		assertSame(t, t.freeze());
+		assertTrue(t.isFrozen());
+
+		assertThrows(UncheckedLuaError.class, () -> t.rawset("x", ValueFactory.valueOf(3)));
+		assertThrows(UncheckedLuaError.class, () -> t.rawset("y", ValueFactory.valueOf(3)));
+		assertThrows(UncheckedLuaError.class, () -> t.rawset(1, Constants.NIL));
+		assertThrows(UncheckedLuaError.class, () -> t.setMetatable(new LuaTable()));
+		assertEquals(ValueFactory.valueOf(1), t.rawget("x"));
+		assertEquals(ValueFactory.valueOf(2), t.rawget(1));
+
+		LuaTable weak = new LuaTable();
+		weak.useWeak(true, false);
+		assertThrows(IllegalStateException.class, weak::freeze);
+	}
+
+	@Test
+	public void testSharedLibraries() throws Exception {
+		LuaState first = LuaState.builder().sharedLibraries(true).build();
+		LuaState second = LuaState.builder().sharedLibraries(true).build();
+		LuaTable firstGlobals = JsePlatform.debugGlobals(first);
+		LuaTable secondGlobals = JsePlatform.standardGlobals(second);
+
+		LuaValue string = firstGlobals.rawget("string");
+		assertSame(string, secondGlobals.rawget("string"));
+		assertTrue(((LuaTable) string).isFrozen());
+
+		LuaFunction function = LoadState.load(first, new ByteArrayInputStream(
+			"local ok, err = pcall(function() string.trim = 1 end) return ok, err, ('%d'):format(1)".getBytes(StandardCharsets.UTF_8)
+		), "=test", firstGlobals);
+		Varargs result = LuaThread.runMain(first, function);
+		assertEquals(Constants.FALSE, result.arg(1));
+		assertEquals("test:1: attempt to modify a frozen table", result.arg(2).toString());
+		assertEquals("1", result.arg(3).toString());
+
+		// Shared functions must not leak an environment from one state to another.
+		function = LoadState.load(first, new ByteArrayInputStream(
+			"return pcall(debug.setfenv, string.len, {})".getBytes(StandardCharsets.UTF_8)
+		), "=test", firstGlobals);
+		result = LuaThread.runMain(first, function);
+		assertEquals(Constants.FALSE, result.arg(1));
+		assertTrue(result.arg(2).toString().endsWith("cannot change the environment of a shared library function"));
+		assertSame(string, ((LuaTable) secondGlobals.rawget("string")).rawget("len").getfenv());
+	}
+
+	@Test
+	public void testFrozenReadsDoNotWrite() throws Exception {
+		LuaTable mt = new LuaTable();
+		mt.rawset(Constants.ADD, ValueFactory.valueOf("add"));
+		mt.freeze();
+		assertEquals(ValueFactory.valueOf("add"), mt.rawget(CachedMetamethod.ADD));
+		assertEquals(Constants.NIL, mt.rawget(CachedMetamethod.SUB));
+
+		// The traversal position is not remembered, but traversal still works.
+		assertEquals(Constants.ADD, mt.next(Constants.NIL).first());
+		assertEquals(Constants.NIL, mt.next(Constants.ADD).first());
+
+		// Sharing the shape of a frozen table should not require copying it.
+		assertNotNull(mt.getShape());
+		assertThrows(UncheckedLuaError.class, () -> mt.rawset("x", ValueFactory.valueOf(1)));
+	}
 }
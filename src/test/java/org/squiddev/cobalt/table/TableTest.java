@@ -28,6 +28,7 @@ import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.Vector;
 
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -156,6 +157,29 @@ public class TableTest {
 		assertEquals(0x03FF, stringKeys);
 	}
 
+	@Test
+	public void testCursor() throws LuaError {
+		LuaTable t = new LuaTable();
+		for (int i = 1; i <= 10; i++) t.rawset(i, valueOf(i));
+		for (int i = 0; i < 10; i++) t.rawset("k" + i, valueOf(i));
+
+		LuaValue[] keys = keys(t);
+		LuaTable.Cursor cursor = t.cursor();
+		for (LuaValue key : keys) {
+			assertTrue(cursor.next());
+			assertEquals(key, cursor.key());
+			assertEquals(t.rawget(key), cursor.value());
+
+			// Clearing the current entry is allowed during traversal
+			t.rawset(key, Constants.NIL);
+		}
+
+		assertFalse(cursor.next());
+		assertFalse(cursor.next());
+		assertEquals(Constants.NIL, cursor.key());
+		assertEquals(0, t.keyCount());
+	}
+
 	@Test
 	public void testBadInitialCapacity() throws LuaError, UnwindThrowable {
 		LuaTable t = new LuaTable(0, 1);
@@ -271,6 +295,30 @@ public class TableTest {
 		}
 	}
 
+	@Test
+	public void testHolesLuaLength() throws LuaError, UnwindThrowable {
+		LuaTable t = new LuaTable();
+		Random random = new Random(0);
+
+		for (int i = 0; i < 2000; i++) {
+			int key = random.nextInt(48) + 1;
+			t.rawset(key, random.nextInt(3) == 0 ? Constants.NIL : valueOf(key));
+
+			int n = OperationHelper.length(state, t).toInteger();
+			assertTrue(n == 0 || !t.rawget(n).isNil(), "t[#t] is non-nil");
+			assertTrue(t.rawget(n + 1).isNil(), "t[#t + 1] is nil");
+		}
+
+		// Fill in the holes, and then make sure we have a sequence again.
+		for (int i = 1; i <= 48; i++) t.rawset(i, valueOf(i));
+		assertEquals(48, t.length());
+		t.rawset(48, Constants.NIL);
+		assertEquals(47, t.length());
+		t.rawset(48, valueOf(48));
+		t.rawset(49, valueOf(49));
+		assertEquals(49, t.length());
+	}
+
 	private void compareLists(LuaTable t, Vector<LuaString> v) throws LuaError, UnwindThrowable {
 		int n = v.size();
 		assertEquals(v.size(), OperationHelper.length(state, t).toInteger());
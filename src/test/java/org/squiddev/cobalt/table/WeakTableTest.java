@@ -28,10 +28,13 @@ import org.junit.jupiter.api.Test;
 import org.squiddev.cobalt.*;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.squiddev.cobalt.Constants.NIL;
 import static org.squiddev.cobalt.ValueFactory.userdataOf;
@@ -132,6 +135,20 @@ public abstract class WeakTableTest {
 			collectGarbage();
 			assertThat(OperationHelper.getTable(state, table, ValueFactory.valueOf(1)), instanceOf(LuaNil.class));
 		}
+
+		@Test
+		public void testDeadEntriesNotRetained() throws LuaError, UnwindThrowable {
+			LuaTable t = new_Table();
+
+			for (int round = 0; round < 10; round++) {
+				for (int i = 0; i < 200; i++) {
+					OperationHelper.setTable(state, t, ValueFactory.valueOf("key-" + round + "-" + i), new LuaTable());
+				}
+				collectGarbage();
+			}
+
+			assertThat("dead entries should not cause the table to grow", t.getHashLength(), lessThanOrEqualTo(512));
+		}
 	}
 
 	public static class WeakKeyTableTest extends WeakTableTest {
@@ -169,6 +186,25 @@ public abstract class WeakTableTest {
 			assertNull(origval.get());
 		}
 
+		@Test
+		public void testDeadKeysReleaseValues() throws LuaError, UnwindThrowable {
+			LuaTable t = ValueFactory.weakTable(true, false);
+
+			List<WeakReference<LuaValue>> values = new ArrayList<>();
+			for (int i = 0; i < 16; i++) {
+				LuaValue value = new LuaTable();
+				OperationHelper.setTable(state, t, new LuaTable(), value);
+				values.add(new WeakReference<>(value));
+			}
+			OperationHelper.setTable(state, t, ValueFactory.valueOf("other"), ValueFactory.valueOf(1));
+			collectGarbage();
+
+			// The values should be released on the next modification, without needing to look up the dead keys.
+			OperationHelper.setTable(state, t, ValueFactory.valueOf("other"), ValueFactory.valueOf(2));
+			collectGarbage();
+			for (WeakReference<LuaValue> value : values) assertNull(value.get());
+		}
+
 		@Test
 		public void testNext() throws LuaError, UnwindThrowable {
 			LuaTable t = ValueFactory.weakTable(true, true);
@@ -214,6 +214,38 @@ public class LuaOperationsTest {
 		}
 	}
 
+	@Test
+	public void testSharedClosures() throws LuaError, InterruptedException {
+		Prototype p = createPrototype(
+			"local fs, gs = {}, {}\n" +
+				"for i = 1, 2 do\n" +
+				"  fs[i] = function() return 1 end\n" +
+				"  gs[i] = function() return i end\n" +
+				"end\n" +
+				"return fs[1] == fs[2], gs[1] == gs[2]", "closuretester");
+
+		LuaState shared = LuaState.builder().shareClosures(true).build();
+		Varargs result = LuaThread.runMain(shared, new LuaInterpretedFunction(p, JsePlatform.standardGlobals(shared)));
+		assertEquals(Constants.TRUE, result.arg(1));
+		assertEquals(Constants.FALSE, result.arg(2));
+
+		LuaState unshared = new LuaState();
+		result = LuaThread.runMain(unshared, new LuaInterpretedFunction(p, JsePlatform.standardGlobals(unshared)));
+		assertEquals(Constants.FALSE, result.arg(1));
+		assertEquals(Constants.FALSE, result.arg(2));
+	}
+
+	@Test
+	public void testDeepTailCalls() throws LuaError, InterruptedException {
+		Prototype p = createPrototype(
+			"local function f(n) if n == 0 then return 'done' end return f(n - 1) end\n" +
+				"return f(100000)", "tailcalltester");
+
+		LuaState state = new LuaState();
+		Varargs result = LuaThread.runMain(state, new LuaInterpretedFunction(p, JsePlatform.standardGlobals(state)));
+		assertEquals(valueOf("done"), result.first());
+	}
+
 	@Test
 	public void testFunctionClosureThreadEnv() throws LuaError, UnwindThrowable, InterruptedException {
 		// set up suitable environments for execution
@@ -32,8 +32,7 @@ import org.squiddev.cobalt.lib.jse.JsePlatform;
 import java.io.IOException;
 import java.io.InputStream;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class StringTest {
 	private final LuaState state = new LuaState();
@@ -97,6 +96,68 @@ public class StringTest {
 		return sb.toString();
 	}
 
+	@Test
+	public void testShortStringCache() {
+		long hits = LuaString.getCacheHits();
+		LuaString first = LuaString.valueOf("cached string");
+		LuaString second = LuaString.valueOf("cached string");
+		assertSame(first, second);
+		assertTrue(LuaString.getCacheHits() > hits);
+
+		// Long strings are never cached
+		String longString = new String(new char[LuaString.RECENT_STRINGS_MAX_LENGTH]).replace('\0', 'x');
+		assertNotSame(LuaString.valueOf(longString), LuaString.valueOf(longString));
+	}
+
+	@Test
+	public void testShortStringInterning() {
+		LuaString first = LuaString.valueOf("interned string").intern();
+		assertSame(first, LuaString.valueOf("interned string").intern());
+		assertSame(first, first.intern());
+
+		// Substrings of short and long strings are interned too.
+		assertSame(first, LuaString.valueOf("an interned string").substring(3, 18).intern());
+		assertSame(first, LuaString.valueOf("an interned string, within a much longer one").substring(3, 18).intern());
+		assertFalse(first.raweq(LuaString.valueOf("interned strinG").intern()));
+		assertTrue(first.raweq(LuaString.valueOf("interned string")));
+
+		// Long strings are never interned
+		LuaString longString = LuaString.valueOf(new String(new char[LuaString.RECENT_STRINGS_MAX_LENGTH]).replace('\0', 'x'));
+		assertSame(longString, longString.intern());
+	}
+
+	@Test
+	public void testRope() {
+		StringBuilder expected = new StringBuilder();
+		LuaBaseString rope = Constants.EMPTYSTRING;
+		for (int i = 0; i < 2000; i++) {
+			String piece = i % 3 == 0 ? "item " + i + " with a longer description; " : "x" + i;
+			expected.append(piece);
+			rope = LuaRope.concat(rope, LuaString.valueOf(piece));
+		}
+		assertTrue(rope instanceof LuaRope);
+
+		String contents = expected.toString();
+		assertEquals(contents.length(), rope.length());
+		for (int i = 0; i < contents.length(); i += 7) assertEquals(contents.charAt(i), rope.luaByte(i));
+		assertEquals(contents.substring(1000, 1010), rope.substring(1000, 1010).toString());
+		assertEquals(contents.substring(50, 5000), rope.substring(50, 5000).toString());
+
+		StringBuilder pieces = new StringBuilder();
+		((LuaRope) rope).pieces().forEachRemaining(pieces::append);
+		assertEquals(contents, pieces.toString());
+
+		// Appending to the same rope twice must not overwrite the first result.
+		LuaBaseString first = LuaRope.concat(rope, LuaString.valueOf("first"));
+		LuaBaseString second = LuaRope.concat(rope, LuaString.valueOf("second"));
+		assertEquals(contents + "first", first.toString());
+		assertEquals(contents + "second", second.toString());
+
+		// Flattening does not change the contents
+		assertEquals(LuaString.valueOf(contents), rope.strvalue());
+		assertEquals(contents.substring(50, 5000), rope.substring(50, 5000).toString());
+	}
+
 	@Test
 	public void testEncoding() {
 		int i = 240;
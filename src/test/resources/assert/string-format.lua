@@ -16,3 +16,21 @@ end)
 while coroutine.status(c) ~= "dead" do
 	assert(coroutine.resume(c))
 end
+
+-- Format strings are compiled and cached, so make sure repeated use gives the same results.
+for _ = 1, 3 do
+	assert(("%d items at %5.2f each"):format(3, 1.5) == "3 items at  1.50 each")
+	assert(("%%%s%%"):format("x") == "%x%")
+	assert(("%-5s|%5s"):format("ab", "cd") == "ab   |   cd")
+	assert(("%g %g %g"):format(0.1, 1e20, 1.5e-7) == "0.1 1e+20 1.5e-07")
+	assert(("%.3e"):format(12345.678) == "1.235e+04")
+	assert(("%#.0f %+.1f % .2f"):format(2, 0.26, 3.14159) == "2. +0.3  3.14")
+	assert(("%x %X %o"):format(255, 255, 8) == "ff FF 10")
+	assert(tostring(0.1) == "0.1" and tostring(-1.25) == "-1.25" and tostring(1/3) == "0.33333333333333")
+end
+
+-- Errors are reported in the same order as the format string.
+local ok, err = pcall(string.format, "%d %y", "x")
+assert(not ok and err:find("number expected"), err)
+ok, err = pcall(string.format, "%d %y", 1)
+assert(not ok and err:find("invalid option '%y'", 1, true), err)
@@ -104,6 +104,8 @@ assertPtrnError("(", "unfinished capture")
 assertPtrnError("%", "malformed pattern (ends with '%')")
 assertPtrnError("%f", "missing '[' after '%f' in pattern")
 assertPtrnError("%b", "unbalanced pattern")
+assertPtrnError("()%1", "cannot refer to position capture")
+assertPtrnError("(a*)()%2", "cannot refer to position capture")
 
 assert(("]"):find("[]]") == 1)
 
@@ -0,0 +1,44 @@
+-- Patterns are compiled and cached, so make sure repeated use gives the same results as the first.
+for _ = 1, 3 do
+	assert(("hello world"):match("^(%w+)") == "hello")
+	assert(("hello world"):match("(%w+)$") == "world")
+	assert(("key = value"):match("^(%w+)%s*=%s*(%w+)$") == "key")
+	assert(select(2, ("key = value"):match("^(%w+)%s*=%s*(%w+)$")) == "value")
+
+	local s, e = ("the quick brown fox"):find("brown")
+	assert(s == 11 and e == 15)
+	s, e = ("the quick brown fox"):find("o%a")
+	assert(s == 13 and e == 14)
+
+	assert(("abcabc"):match("()b()") == 2)
+	assert(("xyzzy"):match("(z)%1") == "z")
+	assert(("f(a(b)c)d"):match("%b()") == "(a(b)c)")
+	assert(("THE (quick) fox"):find("%f[%a]%a+%f[%A]") == 1)
+	assert(("aaab"):match("a-b") == "aaab")
+	assert(("aaab"):match("a*") == "aaa")
+	assert(("aaab"):match("a?b") == "ab")
+
+	local words = {}
+	for w in ("one two  three"):gmatch("%a+") do words[#words + 1] = w end
+	assert(#words == 3 and words[1] == "one" and words[3] == "three")
+
+	-- A leading ^ is not an anchor in gmatch.
+	local count = 0
+	for _ in ("^a^a"):gmatch("^a") do count = count + 1 end
+	assert(count == 2)
+
+	local r, n = ("hello world"):gsub("o", "0")
+	assert(r == "hell0 w0rld" and n == 2)
+	r, n = ("hello world"):gsub("^h", "H")
+	assert(r == "Hello world" and n == 1)
+	r, n = ("abc"):gsub("", "-")
+	assert(r == "-a-b-c-" and n == 4)
+	r = ("hello world"):gsub("(%w+) (%w+)", "%2 %1")
+	assert(r == "world hello")
+end
+
+-- Malformed patterns only error once the bad item is reached.
+assert(("abc"):find("x%") == nil)
+assert(not pcall(string.find, "abc", "a%"))
+assert(not pcall(string.find, "abc", "(a"))
+assert(not pcall(string.match, "abc", "a)"))
@@ -0,0 +1,13 @@
+-- Test execution budgets. Each loop should consume a step on every iteration.
+local function count(n)
+	local total = 0
+	for _ = 1, n do total = total + 1 end
+
+	local i = 0
+	while i < n do i = i + 1 end
+	repeat total = total + 1 until total >= n * 2
+
+	return total
+end
+
+return count(...)
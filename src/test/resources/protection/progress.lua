@@ -0,0 +1,3 @@
+-- Count forever, so the host can see how much work each time slice does.
+progress = 0
+while true do progress = progress + 1 end